@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+// Uniform grid over the draggable control points of one mesh, so finding
+// the point under the mouse looks at a couple of cells instead of every
+// point. Each point sits in the cell holding its (integer) position, on a
+// linked list threaded through arrays; moving a point relinks it in place,
+// so nothing is allocated after construction.
+//
+// Points are identified by row * cols + col of their mesh position.
+public class ControlPointIndex {
+
+    private final int radius;               // a point is hit within this many pixels
+    private final int cellSize;
+    private final int cellsX, cellsY;
+    private final int meshCols;
+    private final int[] head;               // first point in each cell, or -1
+    private final int[] next;               // next point in the same cell, or -1
+    private final int[] xs, ys;             // indexed position of each point
+    private final boolean[] present;
+
+    // Index for the interior points of m (the border ones cannot be
+    // dragged) over a width x height image, hit within radius pixels
+    public ControlPointIndex(Mesh m, int width, int height, int radius) {
+        this.radius = radius;
+        cellSize = 2 * radius;
+        cellsX = Math.max(1, (width + cellSize - 1) / cellSize);
+        cellsY = Math.max(1, (height + cellSize - 1) / cellSize);
+        meshCols = m.getCols();
+        head = new int[cellsX * cellsY];
+        Arrays.fill(head, -1);
+        int n = m.getRows() * meshCols;
+        next = new int[n];
+        xs = new int[n];
+        ys = new int[n];
+        present = new boolean[n];
+
+        for (int r = 1; r < m.getRows() - 1; r++) {
+            for (int c = 1; c < meshCols - 1; c++) {
+                int k = r * meshCols + c;
+                xs[k] = (int) m.getX(r, c);
+                ys[k] = (int) m.getY(r, c);
+                present[k] = true;
+                link(k);
+            }
+        }
+    }
+
+    // Record that the point at mesh (row, col) is now at (x, y)
+    public void move(int row, int col, int x, int y) {
+        int k = row * meshCols + col;
+        if (!present[k])
+            return;
+        unlink(k);
+        xs[k] = x;
+        ys[k] = y;
+        link(k);
+    }
+
+    // Mesh {row, col} of the point whose square node contains (px, py),
+    // the closest if several do, or null. A node covers [x - radius,
+    // x + radius) on both axes, as a filled polygon of that square would.
+    public int[] find(int px, int py) {
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        int cx0 = cellX(px - radius + 1), cx1 = cellX(px + radius);
+        int cy0 = cellY(py - radius + 1), cy1 = cellY(py + radius);
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                for (int k = head[cy * cellsX + cx]; k >= 0; k = next[k]) {
+                    int dx = px - xs[k], dy = py - ys[k];
+                    if (dx < -radius || dx >= radius || dy < -radius || dy >= radius)
+                        continue;
+                    long d = (long) dx * dx + (long) dy * dy;
+                    if (d < bestDistance) {
+                        bestDistance = d;
+                        best = k;
+                    }
+                }
+            }
+        }
+        return best < 0 ? null : new int[] {best / meshCols, best % meshCols};
+    }
+
+    private int cellX(int x) {
+        return Math.max(0, Math.min(cellsX - 1, Math.floorDiv(x, cellSize)));
+    }
+
+    private int cellY(int y) {
+        return Math.max(0, Math.min(cellsY - 1, Math.floorDiv(y, cellSize)));
+    }
+
+    private void link(int k) {
+        int cell = cellY(ys[k]) * cellsX + cellX(xs[k]);
+        next[k] = head[cell];
+        head[cell] = k;
+    }
+
+    private void unlink(int k) {
+        int cell = cellY(ys[k]) * cellsX + cellX(xs[k]);
+        if (head[cell] == k) {
+            head[cell] = next[k];
+            return;
+        }
+        for (int p = head[cell]; p >= 0; p = next[p]) {
+            if (next[p] == k) {
+                next[p] = next[k];
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded, thread-safe store of rendered frames keyed by frame index.
+// Frames are held strongly until their total size exceeds the byte budget,
+// then the least recently used ones are evicted. With soft references on,
+// evicted frames are kept softly reachable so they survive until the
+// garbage collector actually needs the memory.
+public class FrameCache {
+
+    public static final long DEFAULT_BUDGET = Math.min(512L << 20, Runtime.getRuntime().maxMemory() / 4);
+
+    private final long budget;              // maximum bytes held strongly
+    private final boolean softReferences;   // keep evicted frames softly reachable
+    private long bytes = 0;                 // bytes currently held strongly
+    private final LinkedHashMap<Integer, BufferedImage> frames = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<Integer, SoftReference<BufferedImage>> evicted = new HashMap<>();
+
+    public FrameCache() {
+        this(DEFAULT_BUDGET, true);
+    }
+
+    public FrameCache(long budget, boolean softReferences) {
+        this.budget = budget;
+        this.softReferences = softReferences;
+    }
+
+    public synchronized void put(int index, BufferedImage frame) {
+        BufferedImage old = frames.put(index, frame);
+        if (old != null)
+            bytes -= sizeOf(old);
+        evicted.remove(index);
+        bytes += sizeOf(frame);
+
+        // Evict least recently used frames until back under budget, but
+        // always keep the frame just added
+        Iterator<Map.Entry<Integer, BufferedImage>> it = frames.entrySet().iterator();
+        while (bytes > budget && it.hasNext()) {
+            Map.Entry<Integer, BufferedImage> e = it.next();
+            if (e.getKey() == index)
+                continue;
+            bytes -= sizeOf(e.getValue());
+            if (softReferences)
+                evicted.put(e.getKey(), new SoftReference<>(e.getValue()));
+            it.remove();
+        }
+    }
+
+    // Frame at index, or null if it was never added or has been evicted
+    // and collected
+    public synchronized BufferedImage get(int index) {
+        BufferedImage frame = frames.get(index);
+        if (frame != null)
+            return frame;
+
+        SoftReference<BufferedImage> ref = evicted.remove(index);
+        if (ref == null || (frame = ref.get()) == null)
+            return null;
+
+        // Promote a recovered frame back into the strongly held set
+        put(index, frame);
+        return frame;
+    }
+
+    public synchronized boolean contains(int index) {
+        if (frames.containsKey(index))
+            return true;
+        SoftReference<BufferedImage> ref = evicted.get(index);
+        return ref != null && ref.get() != null;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized void clear() {
+        frames.clear();
+        evicted.clear();
+        bytes = 0;
+    }
+
+    // Size of the image's backing store in bytes
+    public static long sizeOf(BufferedImage img) {
+        DataBuffer db = img.getRaster().getDataBuffer();
+        return (long)db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+}
@@ -0,0 +1,12 @@
+import java.awt.image.BufferedImage;
+
+// Receives frames as MorphRenderer produces them. Frames may arrive out of
+// order and from several worker threads at once; the image belongs to the
+// worker and is reused for its next frame once frameRendered returns.
+public interface FrameSink {
+    void frameRendered(int index, BufferedImage frame);
+
+    // Called when the render fails, so that a sink holding workers back
+    // can release them; no more frames will follow
+    default void abort(Throwable cause) {}
+}
@@ -0,0 +1,245 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// A whole frame sequence in one file: a small header followed by
+// fixed-stride raw frames, so frame i starts at HEADER_SIZE + i * frameBytes.
+// Frames are written and read through memory-mapped regions of the file,
+// which keeps them off the Java heap and lets any frame be read back by
+// index without decoding. Pixels are stored little-endian, either as
+// packed ARGB ints (4 channels) or as R, G, B bytes (3 channels).
+//
+// Header (little-endian ints): magic, version, width, height, channels,
+// frame count, then padding up to HEADER_SIZE.
+public class FrameStore implements FrameSink, TileSink {
+
+    public static final String FORMAT = "raw";  // output format name used by the UI
+    public static final String EXTENSION = ".mrph";
+    public static final int MAGIC = 0x4850524d;  // "MRPH"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int width, height, channels, frames;
+    private final long frameBytes;
+    private volatile RenderMetrics metrics;    // write times, may be null
+
+    private FrameStore(RandomAccessFile file, boolean writable, int width, int height, int channels, int frames) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.writable = writable;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.frames = frames;
+        frameBytes = (long)width * height * channels;
+    }
+
+    // Create (or replace) f with room for frames frames of width x height
+    public static FrameStore create(File f, int width, int height, int channels, int frames) throws IOException {
+        if (channels != 3 && channels != 4)
+            throw new IllegalArgumentException("channels must be 3 or 4");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long)width * height * channels * frames);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(channels).putInt(frames);
+            header.rewind();
+            raf.getChannel().write(header, 0);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        return new FrameStore(raf, true, width, height, channels, frames);
+    }
+
+    // Open an existing store read-only
+    public static FrameStore open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            raf.getChannel().read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+                throw new IOException(f + " is not a frame store");
+            if (header.getInt() != VERSION)
+                throw new IOException(f + " has an unsupported frame store version");
+            int width = header.getInt(), height = header.getInt();
+            int channels = header.getInt(), frames = header.getInt();
+            FrameStore store = new FrameStore(raf, false, width, height, channels, frames);
+            if (raf.length() < HEADER_SIZE + store.frameBytes * frames)
+                throw new IOException(f + " is truncated");
+            return store;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    private MappedByteBuffer map(int index, FileChannel.MapMode mode) throws IOException {
+        return map(index, 0, height, mode);
+    }
+
+    // Rows y..y+rows-1 of frame index
+    private MappedByteBuffer map(int index, int y, int rows, FileChannel.MapMode mode) throws IOException {
+        if (index < 0 || index >= frames)
+            throw new IndexOutOfBoundsException("frame " + index + " of " + frames);
+        long rowBytes = (long)width * channels;
+        MappedByteBuffer buf = channel.map(mode, HEADER_SIZE + index * frameBytes + y * rowBytes, rows * rowBytes);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    // Store frame at index. Safe to call from several render threads at
+    // once since every frame has its own region of the file.
+    public void write(int index, BufferedImage frame) throws IOException {
+        if (frame.getWidth() != width || frame.getHeight() != height)
+            throw new IllegalArgumentException("frame is " + frame.getWidth() + "x" + frame.getHeight()
+                    + ", store is " + width + "x" + height);
+        writeTile(index, 0, 0, frame);
+    }
+
+    // Store tile as the pixels of frame index from (x, y) on, so a frame
+    // too large to hold in memory can be written a piece at a time
+    public void writeTile(int index, int x, int y, BufferedImage tile) throws IOException {
+        if (!writable)
+            throw new IOException("frame store is read-only");
+        int w = tile.getWidth(), rows = tile.getHeight();
+        if (x < 0 || y < 0 || x + w > width || y + rows > height)
+            throw new IllegalArgumentException("tile is " + w + "x" + rows + " at " + x + "," + y
+                    + ", store is " + width + "x" + height);
+
+        MappedByteBuffer buf = map(index, y, rows, FileChannel.MapMode.READ_WRITE);
+        int[] data = packedPixels(tile);
+        if (channels == 4) {
+            IntBuffer ints = buf.asIntBuffer();
+            if (data != null && tile.getType() == BufferedImage.TYPE_INT_ARGB && w == width) {
+                // Whole raster in one bulk copy straight into the mapping
+                ints.put(data, 0, w * rows);
+            }
+            else if (data != null && tile.getType() == BufferedImage.TYPE_INT_ARGB) {
+                for (int r = 0; r < rows; r++) {
+                    ints.position(r * width + x);
+                    ints.put(data, r * w, w);
+                }
+            }
+            else if (data != null) {
+                for (int r = 0; r < rows; r++) {
+                    for (int i = 0, o = r * width + x; i < w; i++)
+                        ints.put(o + i, data[r * w + i] | 0xff000000);
+                }
+            }
+            else {
+                int[] row = new int[w];
+                for (int r = 0; r < rows; r++) {
+                    ints.position(r * width + x);
+                    ints.put(tile.getRGB(0, r, w, 1, row, 0, w));
+                }
+            }
+        }
+        else {
+            PixelBuffer px = new PixelBuffer(tile);
+            for (int r = 0; r < rows; r++) {
+                buf.position((r * width + x) * channels);
+                for (int i = 0; i < w; i++) {
+                    int argb = px.get(i, r);
+                    buf.put((byte)(argb >> 16)).put((byte)(argb >> 8)).put((byte)argb);
+                }
+            }
+        }
+    }
+
+    // Record write times and bytes written in m
+    public void setMetrics(RenderMetrics m) {
+        metrics = m;
+    }
+
+    // FrameSink adapter for MorphRenderer
+    @Override
+    public void frameRendered(int index, BufferedImage frame) {
+        long start = System.nanoTime();
+        try {
+            write(index, frame);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        RenderMetrics m = metrics;
+        if (m != null)
+            m.addOutput(index, FORMAT, 0, System.nanoTime() - start, frameBytes);
+    }
+
+    // TileSink adapter for TiledMorphRenderer
+    @Override
+    public void tileRendered(int index, int x, int y, BufferedImage tile) {
+        long start = System.nanoTime();
+        try {
+            writeTile(index, x, y, tile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        RenderMetrics m = metrics;
+        if (m != null)
+            m.addOutput(index, FORMAT, 0, System.nanoTime() - start, (long)tile.getWidth() * tile.getHeight() * channels);
+    }
+
+    // Read frame index into a new image; no decoding, just a copy out of
+    // the mapping
+    public BufferedImage read(int index) throws IOException {
+        BufferedImage img = new BufferedImage(width, height,
+                channels == 4 ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+        MappedByteBuffer buf = map(index, FileChannel.MapMode.READ_ONLY);
+        if (channels == 4) {
+            buf.asIntBuffer().get(data, 0, width * height);
+        }
+        else {
+            for (int i = 0; i < width * height; i++)
+                data[i] = ((buf.get() & 0xff) << 16) | ((buf.get() & 0xff) << 8) | (buf.get() & 0xff);
+        }
+        return img;
+    }
+
+    // Backing array of an unshared INT_RGB/INT_ARGB raster with no row padding
+    private int[] packedPixels(BufferedImage img) {
+        int type = img.getType();
+        if ((type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)
+                || img.getRaster().getParent() != null)
+            return null;
+        DataBufferInt db = (DataBufferInt)img.getRaster().getDataBuffer();
+        if (db.getOffset() != 0 || db.getSize() != img.getWidth() * img.getHeight())
+            return null;
+        return db.getData();
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,216 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Encodes and writes frames to dir/<index>.<format> on its own encoder
+// threads so rendering overlaps with compression and disk I/O. Frames are
+// copied into pooled buffers and queued; when the queue is full the render
+// thread blocks until an encoder catches up. The first write error, or
+// runtime failure in ImageIO or the listener, stops the pipeline and is
+// rethrown from frameRendered and close.
+public class FrameWriter implements FrameSink {
+
+    public static final String JPEG = "jpg";
+    public static final String PNG = "png";
+    public static final float DEFAULT_QUALITY = 0.75f;
+    public static final int DEFAULT_ENCODERS = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+
+    private final File dir;
+    private final String format;        // JPEG or PNG
+    private final float quality;        // JPEG compression quality, 0..1
+    private final FrameSink listener;   // told about each frame once it is on disk, may be null;
+                                        // the image passed to it is only valid during the call
+    private final BlockingQueue<Job> queue;
+    private final BlockingQueue<BufferedImage> free;    // recycled frame copies
+    private final List<Thread> encoders = new ArrayList<>();
+    private volatile IOException error;
+    private volatile RenderMetrics metrics;    // encode and write times, may be null
+
+    private static class Job {
+        final int index;
+        final BufferedImage frame;
+
+        Job(int index, BufferedImage frame) {
+            this.index = index;
+            this.frame = frame;
+        }
+    }
+
+    private static final Job END = new Job(-1, null);   // tells an encoder to exit
+
+    public FrameWriter(File dir, String format, float quality, int encoderCount, FrameSink listener) {
+        this.dir = dir;
+        this.format = format;
+        this.quality = quality;
+        this.listener = listener;
+        encoderCount = Math.max(1, encoderCount);
+        queue = new ArrayBlockingQueue<>(2 * encoderCount);
+        free = new ArrayBlockingQueue<>(3 * encoderCount + 1);
+        dir.mkdirs();
+
+        for (int i = 0; i < encoderCount; i++) {
+            Thread t = new Thread(this::encodeLoop, "frame-encoder-" + i);
+            t.setDaemon(true);
+            t.start();
+            encoders.add(t);
+        }
+    }
+
+    public FrameWriter(File dir, String format) {
+        this(dir, format, DEFAULT_QUALITY, DEFAULT_ENCODERS, null);
+    }
+
+    // Record encode and write times, bytes written and encoder allocations in m
+    public void setMetrics(RenderMetrics m) {
+        metrics = m;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public File fileFor(int index) {
+        return new File(dir, index + "." + format);
+    }
+
+    // Queue a copy of frame for writing, blocking while the queue is full
+    @Override
+    public void frameRendered(int index, BufferedImage frame) {
+        checkError();
+        BufferedImage copy = copyOf(frame);
+        try {
+            queue.put(new Job(index, copy));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new IOException("Interrupted while queueing frame " + index));
+        }
+    }
+
+    // Wait for every queued frame to be written and stop the encoders
+    public void close() throws IOException {
+        try {
+            for (int i = 0; i < encoders.size(); i++)
+                queue.put(END);
+            for (Thread t : encoders)
+                t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing frames");
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private void checkError() {
+        if (error != null)
+            throw new UncheckedIOException(error);
+    }
+
+    // JPEG has no alpha, so frames are always copied into an RGB buffer for it
+    private BufferedImage copyOf(BufferedImage frame) {
+        int type = format.equals(JPEG) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+        BufferedImage copy = free.poll();
+        if (copy == null || copy.getWidth() != frame.getWidth() || copy.getHeight() != frame.getHeight())
+            copy = new BufferedImage(frame.getWidth(), frame.getHeight(), type);
+        Graphics2D g = copy.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(frame, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    private ImageWriter createWriter() throws IOException {
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format);
+        if (!it.hasNext())
+            throw new IOException("No ImageIO writer for " + format);
+        return it.next();
+    }
+
+    private void encodeLoop() {
+        long allocated = RenderMetrics.threadAllocatedBytes();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageWriter writer = null;
+        ImageWriteParam param = null;
+        try {
+            // One writer per encoder thread, reused for every frame
+            writer = createWriter();
+            param = writer.getDefaultWriteParam();
+            if (format.equals(JPEG)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException("Cannot create " + format + " writer", e);
+        }
+
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == END)
+                break;
+
+            // After a failure keep draining so producers never block forever
+            if (error == null) {
+                try {
+                    write(writer, param, job, encoded);
+                    if (listener != null)
+                        listener.frameRendered(job.index, job.frame);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    // The encoder must outlive this, or producers and close block
+                    error = new IOException("Failed to write frame " + job.index, e);
+                }
+            }
+            free.offer(job.frame);
+        }
+        if (writer != null)
+            writer.dispose();
+        RenderMetrics m = metrics;
+        if (m != null && allocated >= 0)
+            m.addAllocated(RenderMetrics.threadAllocatedBytes() - allocated);
+    }
+
+    // Encode into memory first, so encoding and disk time are told apart
+    private void write(ImageWriter writer, ImageWriteParam param, Job job, ByteArrayOutputStream encoded) throws IOException {
+        long start = System.nanoTime();
+        encoded.reset();
+        try (ImageOutputStream out = new MemoryCacheImageOutputStream(encoded)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(job.frame, null, null), param);
+        } finally {
+            writer.setOutput(null);
+        }
+
+        long written = System.nanoTime();
+        File f = fileFor(job.index);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            encoded.writeTo(out);
+        }
+
+        RenderMetrics m = metrics;
+        if (m != null)
+            m.addOutput(job.index, format, written - start, System.nanoTime() - written, encoded.size());
+    }
+}
@@ -0,0 +1,98 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+// Streams frames into one looping animated GIF through the ImageIO GIF
+// writer's sequence support. Each frame is encoded as it arrives.
+public class GifSequenceWriter extends SequenceWriter {
+
+    public static final String FORMAT = "gif";
+    private static final String METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+
+    private final ImageOutputStream out;
+    private final ImageWriter writer;
+    private final ImageWriteParam param;
+    private final int delay;        // frame delay in hundredths of a second
+    private boolean first = true;
+
+    public GifSequenceWriter(File f, int framesPerSecond) throws IOException {
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(FORMAT);
+        if (!it.hasNext())
+            throw new IOException("No ImageIO writer for " + FORMAT);
+        writer = it.next();
+        param = writer.getDefaultWriteParam();
+        delay = Math.max(1, Math.round(100f / framesPerSecond));
+
+        f.delete();
+        out = new FileImageOutputStream(f);
+        writer.setOutput(out);
+        writer.prepareWriteSequence(null);
+    }
+
+    @Override
+    protected void writeFrame(BufferedImage frame) throws IOException {
+        long start = System.nanoTime();
+        long position = out.getStreamPosition();
+        IIOMetadata metadata = writer.getDefaultImageMetadata(
+                ImageTypeSpecifier.createFromRenderedImage(frame), param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(METADATA_FORMAT);
+
+        // Frame delay
+        IIOMetadataNode control = child(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(delay));
+        control.setAttribute("transparentColorIndex", "0");
+
+        // Loop forever; only needed once, on the first frame
+        if (first) {
+            IIOMetadataNode apps = child(root, "ApplicationExtensions");
+            IIOMetadataNode app = new IIOMetadataNode("ApplicationExtension");
+            app.setAttribute("applicationID", "NETSCAPE");
+            app.setAttribute("authenticationCode", "2.0");
+            app.setUserObject(new byte[] {1, 0, 0});
+            apps.appendChild(app);
+            first = false;
+        }
+
+        metadata.setFromTree(METADATA_FORMAT, root);
+        writer.writeToSequence(new IIOImage(frame, null, metadata), param);
+
+        // The GIF writer encodes straight into the file, so it all counts as encoding
+        recordOutput(FORMAT, System.nanoTime() - start, 0, out.getStreamPosition() - position);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        try {
+            writer.endWriteSequence();
+        } catch (IllegalStateException e) {
+            // No frame was ever written
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+    }
+
+    // Existing child of root called name, created if missing
+    private static IIOMetadataNode child(IIOMetadataNode root, String name) {
+        for (int i = 0; i < root.getLength(); i++) {
+            if (root.item(i).getNodeName().equalsIgnoreCase(name))
+                return (IIOMetadataNode) root.item(i);
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        root.appendChild(node);
+        return node;
+    }
+}
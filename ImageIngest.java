@@ -0,0 +1,49 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+// Load-time normalization of source images. ImageIO hands back whatever
+// the file decodes to (3-byte BGR, grey, indexed, custom layouts); each
+// image is redrawn once into packed int RGB, or ARGB when it has alpha,
+// and optionally resampled to a working size, so display, preview and the
+// warp kernels all read int rasters directly from then on.
+public class ImageIngest {
+
+    // Read f as a packed int image, resampled to width x height unless width is 0
+    public static BufferedImage read(File f, int width, int height) throws IOException {
+        BufferedImage img = ImageIO.read(f);
+        if (img == null)
+            throw new IOException("cannot read image " + f);
+        return normalize(img, width, height);
+    }
+
+    // img as a packed int image of width x height (its own size if width is 0)
+    public static BufferedImage normalize(BufferedImage img, int width, int height) {
+        BufferedImage packed = toPacked(img);
+        if (width == 0 || (packed.getWidth() == width && packed.getHeight() == height))
+            return packed;
+
+        // Shrinking goes through the pyramid so large reductions are averaged, not aliased
+        return new ImagePyramid(packed).scaled(width, height);
+    }
+
+    // img itself if the warp code can read its int raster directly, else a packed copy
+    public static BufferedImage toPacked(BufferedImage img) {
+        if (isPacked(img))
+            return img;
+        boolean alpha = img.getColorModel().hasAlpha();
+        BufferedImage out = new BufferedImage(img.getWidth(), img.getHeight(),
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return out;
+    }
+
+    public static boolean isPacked(BufferedImage img) {
+        return new PixelBuffer(img).getInts() != null;
+    }
+}
@@ -0,0 +1,97 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+
+// Power-of-two pyramid over one image. Level 0 is the image itself and each
+// level below it is half the size of the one above, every pixel the
+// average of a 2x2 block. Levels are built on first use, so an image that
+// is only ever shown small costs one chain of halvings, and one that is
+// only used at full size costs nothing.
+public class ImagePyramid {
+
+    private final List<BufferedImage> levels = new ArrayList<>();
+    private final int levelCount;
+
+    public ImagePyramid(BufferedImage base) {
+        levels.add(base);
+        int n = 1;
+        for (int w = base.getWidth(), h = base.getHeight(); w > 1 || h > 1; w = half(w), h = half(h))
+            n++;
+        levelCount = n;
+    }
+
+    public BufferedImage getBase() {
+        return levels.get(0);
+    }
+
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    // Level k, building it and any level above it that is still missing
+    public synchronized BufferedImage getLevel(int k) {
+        k = Math.max(0, Math.min(k, levelCount - 1));
+        while (levels.size() <= k)
+            levels.add(halve(levels.get(levels.size() - 1)));
+        return levels.get(k);
+    }
+
+    // Smallest level still at least width x height, so sampling it for a
+    // width x height target never magnifies
+    public int levelFor(int width, int height) {
+        int k = 0;
+        for (int w = getBase().getWidth(), h = getBase().getHeight();
+             k < levelCount - 1 && half(w) >= width && half(h) >= height; w = half(w), h = half(h))
+            k++;
+        return k;
+    }
+
+    public BufferedImage forSize(int width, int height) {
+        return getLevel(levelFor(width, height));
+    }
+
+    // Copy of the closest level resampled bilinearly to exactly width x height
+    public BufferedImage scaled(int width, int height) {
+        BufferedImage src = forSize(width, height);
+        if (src.getWidth() == width && src.getHeight() == height)
+            return src;
+        BufferedImage img = new BufferedImage(width, height,
+                src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(src, 0, 0, width, height, null);
+        g.dispose();
+        return img;
+    }
+
+    private static int half(int n) {
+        return Math.max(1, (n + 1) / 2);
+    }
+
+    // Average every 2x2 block of src; an odd last row or column is paired
+    // with itself
+    private static BufferedImage halve(BufferedImage src) {
+        PixelBuffer in = new PixelBuffer(src);
+        int w = half(in.width), h = half(in.height);
+        boolean alpha = src.getColorModel().hasAlpha();
+        BufferedImage dst = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+
+        for (int y = 0; y < h; y++) {
+            int y0 = 2 * y, y1 = Math.min(2 * y + 1, in.height - 1);
+            for (int x = 0; x < w; x++) {
+                int x0 = 2 * x, x1 = Math.min(2 * x + 1, in.width - 1);
+                int a = in.get(x0, y0), b = in.get(x1, y0), c = in.get(x0, y1), d = in.get(x1, y1);
+
+                // Sum two channels at a time; four 8-bit values fit in 10 bits
+                int rb = (a & 0xff00ff) + (b & 0xff00ff) + (c & 0xff00ff) + (d & 0xff00ff) + 0x020002;
+                int ag = ((a >>> 8) & 0xff00ff) + ((b >>> 8) & 0xff00ff) + ((c >>> 8) & 0xff00ff)
+                        + ((d >>> 8) & 0xff00ff) + 0x020002;
+                out[y * w + x] = ((ag << 6) & 0xff00ff00) | ((rb >>> 2) & 0xff00ff);
+            }
+        }
+        return dst;
+    }
+}
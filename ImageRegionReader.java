@@ -0,0 +1,185 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+// Reads rectangles of an image file on demand, so an image far larger
+// than the heap can be sampled one region at a time. Regions come back
+// as packed int images, decoded straight into that layout when the
+// reader offers it. With subsampling k, only every k-th pixel of every
+// k-th row is read and the image acts as one k times smaller; pixels are
+// skipped, not averaged, so this is for previews of huge scans.
+//
+// How cheap a region is depends on the format: tiled or striped TIFF
+// reads only the strips it needs, while JPEG and PNG decode from the
+// start of the file up to the region's last row.
+public class ImageRegionReader implements Closeable {
+
+    private static final int CONVERT_PIXELS = 1 << 20;  // pixels converted to packed ints per step
+
+    private final File file;
+    private final ImageInputStream stream;
+    private final ImageReader reader;
+    private final int sourceWidth, sourceHeight;
+    private final boolean opaque;
+    private final ImageTypeSpecifier packedType;    // int layout the reader decodes into, or null
+    private final int decodedBytes;     // bytes per pixel the reader decodes to, if not packedType
+    private int subsampling = 1;
+
+    public ImageRegionReader(File f) throws IOException {
+        file = f;
+        stream = ImageIO.createImageInputStream(f);
+        if (stream == null)
+            throw new IOException("cannot open " + f);
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            stream.close();
+            throw new IOException("cannot read image " + f);
+        }
+        reader = readers.next();
+        try {
+            // Seeking back is needed for regions in any order
+            reader.setInput(stream, false, true);
+            sourceWidth = reader.getWidth(0);
+            sourceHeight = reader.getHeight(0);
+
+            boolean alpha = false;
+            ImageTypeSpecifier packed = null;
+            int bits = 32;
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            for (boolean first = true; types.hasNext(); first = false) {
+                ImageTypeSpecifier t = types.next();
+                int type = t.getBufferedImageType();
+                if (packed == null && (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB))
+                    packed = t;
+                if (first)
+                    bits = t.getSampleModel().getNumBands() * t.getSampleModel().getSampleSize(0);
+                alpha |= t.getColorModel().hasAlpha();
+            }
+            decodedBytes = (bits + 7) / 8;
+            opaque = !alpha;
+            // An opaque int layout for an image with alpha would drop it
+            packedType = packed != null && (packed.getColorModel().hasAlpha() || opaque) ? packed : null;
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Read only every k-th pixel and row from now on
+    public synchronized void setSubsampling(int k) {
+        subsampling = Math.max(1, k);
+    }
+
+    public int getSubsampling() {
+        return subsampling;
+    }
+
+    // Size of the image as read, after subsampling
+    public int getWidth() {
+        return (sourceWidth + subsampling - 1) / subsampling;
+    }
+
+    public int getHeight() {
+        return (sourceHeight + subsampling - 1) / subsampling;
+    }
+
+    // Size of the image in the file
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    public boolean isOpaque() {
+        return opaque;
+    }
+
+    // Most bytes per pixel of a region held while reading it: the packed
+    // result, plus the decoded image when the reader cannot decode to ints
+    public int getBytesPerPixel() {
+        return packedType != null ? 4 : 4 + decodedBytes;
+    }
+
+    // Region r of the image as read (after subsampling) as a packed int
+    // image of r's size; r must lie inside the image
+    public synchronized BufferedImage read(Rectangle r) throws IOException {
+        int k = subsampling;
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(r.x * k, r.y * k,
+                Math.min(r.width * k, sourceWidth - r.x * k), Math.min(r.height * k, sourceHeight - r.y * k)));
+        param.setSourceSubsampling(k, k, 0, 0);
+        if (packedType != null)
+            param.setDestinationType(packedType);
+        BufferedImage img = reader.read(0, param);
+        if (img == null)
+            throw new IOException("cannot read image " + file);
+        if (ImageIngest.isPacked(img))
+            return img;
+
+        int w = img.getWidth(), h = img.getHeight();
+        boolean alpha = img.getColorModel().hasAlpha();
+        BufferedImage out = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        if (isPlainRgb(img)) {
+            // Readers such as TIFF's return custom layouts that drawImage
+            // converts a pixel at a time; 8-bit RGB(A) samples pack directly
+            Raster in = img.getRaster();
+            int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+            int bands = in.getNumBands();
+            int[] row = new int[w * bands];
+            for (int y = 0, o = 0; y < h; y++) {
+                in.getPixels(0, y, w, 1, row);
+                for (int x = 0, i = 0; x < w; x++, i += bands) {
+                    int a = alpha ? row[i + 3] << 24 : 0;
+                    dst[o++] = a | (row[i] << 16) | (row[i + 1] << 8) | row[i + 2];
+                }
+            }
+            return out;
+        }
+
+        // Convert a few rows at a time; drawing the whole region at once
+        // can take another full-size copy on the way
+        Graphics2D g = out.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        int rows = Math.max(1, CONVERT_PIXELS / w);
+        for (int y = 0; y < h; y += rows)
+            g.drawImage(img.getSubimage(0, y, w, Math.min(rows, h - y)), 0, y, null);
+        g.dispose();
+        return out;
+    }
+
+    // Whether img holds unpremultiplied 8-bit sRGB samples, R, G, B and
+    // maybe alpha, in that order
+    private static boolean isPlainRgb(BufferedImage img) {
+        ColorModel cm = img.getColorModel();
+        if (!(cm instanceof ComponentColorModel) || !cm.getColorSpace().isCS_sRGB() || cm.isAlphaPremultiplied())
+            return false;
+        int bands = img.getRaster().getNumBands();
+        if (bands != (cm.hasAlpha() ? 4 : 3))
+            return false;
+        for (int size : img.getSampleModel().getSampleSize()) {
+            if (size != 8)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        reader.dispose();
+        stream.close();
+    }
+}
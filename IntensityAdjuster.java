@@ -0,0 +1,79 @@
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Applies intensity changes to the image shown by one MyImageObj off the
+// EDT. Slider events arrive far faster than a full-size image can be
+// filtered, so each request supersedes the ones before it and a queued
+// request that has been overtaken is skipped. Results go through an
+// IntensityLut into one of two packed buffers that are reused while the
+// image stays the same: the one being written is never the one on screen.
+public class IntensityAdjuster {
+
+    private final MyImageObj target;
+    private final Runnable done;            // run on the EDT after a result is shown
+    private final AtomicInteger latest = new AtomicInteger();  // latest request; older ones are dropped
+    private ExecutorService worker;
+    private final BufferedImage[] buffers = new BufferedImage[2];  // used by the worker only
+    private volatile BufferedImage shown;   // buffer currently set on target, if any
+
+    public IntensityAdjuster(MyImageObj target, Runnable done) {
+        this.target = target;
+        this.done = done;
+    }
+
+    // Show target's original image scaled by scale, superseding every
+    // earlier request. Called on the EDT.
+    public void request(final float scale) {
+        final int request = latest.incrementAndGet();
+        final BufferedImage original = target.getOriginalImg();
+        if (original == null)
+            return;
+        if (scale == 1.0f) {
+            show(original);
+            return;
+        }
+        if (worker == null) {
+            worker = Executors.newSingleThreadExecutor(r -> {
+                Thread th = new Thread(r, "intensity");
+                th.setDaemon(true);
+                return th;
+            });
+        }
+        worker.execute(() -> {
+            // Skip requests overtaken while they were queued
+            if (request != latest.get())
+                return;
+            BufferedImage out = buffer(original);
+            new IntensityLut(scale).apply(original, out);
+            SwingUtilities.invokeLater(() -> {
+                if (request == latest.get() && target.getOriginalImg() == original)
+                    show(out);
+            });
+        });
+    }
+
+    private void show(BufferedImage img) {
+        shown = img;
+        target.setFilteredImg(img);
+        done.run();
+    }
+
+    // A buffer the size and type of original that is not on screen
+    private BufferedImage buffer(BufferedImage original) {
+        BufferedImage current = shown;
+        for (int k = 0; k < buffers.length; k++) {
+            BufferedImage b = buffers[k];
+            if (b == null || b.getWidth() != original.getWidth() || b.getHeight() != original.getHeight()
+                    || b.getType() != original.getType()) {
+                b = new BufferedImage(original.getWidth(), original.getHeight(), original.getType());
+                buffers[k] = b;
+            }
+            if (b != current)
+                return b;
+        }
+        return buffers[0];
+    }
+}
@@ -0,0 +1,50 @@
+import java.awt.image.BufferedImage;
+
+// Intensity adjustment as a 256-entry table: every color channel c becomes
+// min(255, (int)(c * scale)), alpha is left alone. Same result as
+// RescaleOp(scale, 0) on 8-bit channels, for the cost of three lookups per
+// pixel, so it can be applied while warping instead of to a copy.
+public final class IntensityLut {
+
+    private final float scale;
+    private final int[] table = new int[256];
+
+    public IntensityLut(float scale) {
+        this.scale = scale;
+        for (int c = 0; c < 256; c++)
+            table[c] = Math.max(0, Math.min(255, (int)(c * scale)));
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public boolean isIdentity() {
+        for (int c = 0; c < 256; c++) {
+            if (table[c] != c)
+                return false;
+        }
+        return true;
+    }
+
+    // The table itself, for kernels that inline the lookups
+    int[] table() {
+        return table;
+    }
+
+    public int apply(int argb) {
+        return PixelBuffer.applyLut(table, argb);
+    }
+
+    // dst = src with the table applied; both packed int images of one size
+    public void apply(BufferedImage src, BufferedImage dst) {
+        PixelBuffer in = new PixelBuffer(src), out = new PixelBuffer(dst);
+        int[] s = in.getInts(), d = out.getInts();
+        int alpha = in.isOpaque() ? 0xff000000 : 0;
+        for (int y = 0; y < in.height; y++) {
+            int si = y * in.getStride(), di = y * out.getStride();
+            for (int x = 0; x < in.width; x++)
+                d[di + x] = apply(alpha | s[si + x]);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+// Triangle mesh over a grid of control points, stored as flat arrays: the
+// vertex positions live in xs and ys (row-major, row * cols + col) and
+// every triangle is three consecutive vertex numbers in indices.
+//
+// Each grid cell with upper left vertex (i, j) holds two triangles:
+//     (i, j) (i+1, j) (i+1, j+1)    and    (i, j) (i, j+1) (i+1, j+1)
+//
+// Mesh files are plain text: a header line "mesh <rows> <cols> <width>
+// <height>" giving the size of the space the points live in, then one
+// "<x> <y>" line per vertex, row by row. Lines starting with # are ignored.
+public class Mesh {
+
+    final int rows, cols;       // vertices per column and per row
+    final double[] xs, ys;      // vertex positions
+    final int[] indices;        // three vertex numbers per triangle
+
+    // View of mesh m that shares its vertex arrays but has only the given triangles
+    private Mesh(Mesh m, int[] indices) {
+        rows = m.rows;
+        cols = m.cols;
+        xs = m.xs;
+        ys = m.ys;
+        this.indices = indices;
+    }
+
+    public Mesh(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        xs = new double[rows * cols];
+        ys = new double[rows * cols];
+
+        indices = new int[(rows - 1) * (cols - 1) * 6];
+        int n = 0;
+        for (int i = 0; i < rows - 1; i++) {
+            for (int j = 0; j < cols - 1; j++) {
+                int v = i * cols + j;
+                indices[n++] = v;
+                indices[n++] = v + cols;
+                indices[n++] = v + cols + 1;
+                indices[n++] = v;
+                indices[n++] = v + 1;
+                indices[n++] = v + cols + 1;
+            }
+        }
+    }
+
+    // Evenly spaced grid of gridSize x gridSize movable points plus a fixed
+    // border, covering width x height
+    public static Mesh grid(int gridSize, int width, int height) {
+        Mesh m = new Mesh(gridSize + 2, gridSize + 2);
+        for (int i = 0; i < m.rows; i++) {
+            for (int j = 0; j < m.cols; j++) {
+                m.xs[i * m.cols + j] = (int)(j * (width / ((double)gridSize + 1)));
+                m.ys[i * m.cols + j] = (int)(i * (height / ((double)gridSize + 1)));
+            }
+        }
+        return m;
+    }
+
+    public Mesh copy() {
+        Mesh m = new Mesh(rows, cols);
+        System.arraycopy(xs, 0, m.xs, 0, xs.length);
+        System.arraycopy(ys, 0, m.ys, 0, ys.length);
+        return m;
+    }
+
+    // Copy of this mesh with x scaled by sx and y by sy
+    public Mesh scaled(double sx, double sy) {
+        Mesh m = new Mesh(rows, cols);
+        for (int v = 0; v < xs.length; v++) {
+            m.xs[v] = xs[v] * sx;
+            m.ys[v] = ys[v] * sy;
+        }
+        return m;
+    }
+
+    // out = a + (b - a) * t, vertex by vertex. All three meshes must have
+    // the same dimensions; out may be a or b.
+    public static void lerp(Mesh a, Mesh b, double t, Mesh out) {
+        double[] ax = a.xs, ay = a.ys, bx = b.xs, by = b.ys, ox = out.xs, oy = out.ys;
+        for (int v = 0; v < ox.length; v++) {
+            ox[v] = ax[v] + (bx[v] - ax[v]) * t;
+            oy[v] = ay[v] + (by[v] - ay[v]) * t;
+        }
+    }
+
+    // View of this mesh holding only the triangles t with keep[t] set. The
+    // view shares this mesh's vertices, so moving a vertex moves it in both.
+    public Mesh withTriangles(boolean[] keep) {
+        int n = 0;
+        for (boolean k : keep)
+            n += k ? 3 : 0;
+        int[] kept = new int[n];
+        n = 0;
+        for (int t = 0; t < keep.length; t++) {
+            if (keep[t]) {
+                kept[n++] = indices[3 * t];
+                kept[n++] = indices[3 * t + 1];
+                kept[n++] = indices[3 * t + 2];
+            }
+        }
+        return new Mesh(this, kept);
+    }
+
+    // Whether triangle t has the same vertex positions in this mesh and m
+    public boolean sameTriangle(Mesh m, int t) {
+        for (int k = 3 * t; k < 3 * t + 3; k++) {
+            int v = indices[k];
+            if (xs[v] != m.xs[v] || ys[v] != m.ys[v])
+                return false;
+        }
+        return true;
+    }
+
+    public boolean sameShape(Mesh m) {
+        return rows == m.rows && cols == m.cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getTriangleCount() {
+        return indices.length / 3;
+    }
+
+    public double getX(int row, int col) {
+        return xs[row * cols + col];
+    }
+
+    public double getY(int row, int col) {
+        return ys[row * cols + col];
+    }
+
+    public void set(int row, int col, double x, double y) {
+        xs[row * cols + col] = x;
+        ys[row * cols + col] = y;
+    }
+
+    // Write to f, recording that the points are in a width x height space
+    public void write(File f, int width, int height) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(f)))) {
+            out.println("# morph control points");
+            out.println("mesh " + rows + " " + cols + " " + width + " " + height);
+            for (int v = 0; v < xs.length; v++)
+                out.println(xs[v] + " " + ys[v]);
+            if (out.checkError())
+                throw new IOException("Cannot write " + f);
+        }
+    }
+
+    // Read a mesh file, scaling its points into a width x height space
+    public static Mesh read(File f, double width, double height) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    lines.add(line);
+            }
+        }
+
+        try {
+            String[] header = lines.isEmpty() ? new String[0] : lines.get(0).split("\\s+");
+            if (header.length != 5 || !header[0].equals("mesh"))
+                throw new IOException(f + " is not a mesh file");
+            int rows = Integer.parseInt(header[1]), cols = Integer.parseInt(header[2]);
+            double sx = width / Double.parseDouble(header[3]);
+            double sy = height / Double.parseDouble(header[4]);
+            if (rows < 2 || cols < 2 || lines.size() != rows * cols + 1)
+                throw new IOException(f + " does not hold " + rows + " x " + cols + " points");
+
+            Mesh m = new Mesh(rows, cols);
+            for (int v = 0; v < rows * cols; v++) {
+                String[] xy = lines.get(v + 1).split("\\s+");
+                if (xy.length != 2)
+                    throw new IOException(f + ": bad point '" + lines.get(v + 1) + "'");
+                m.xs[v] = Double.parseDouble(xy[0]) * sx;
+                m.ys[v] = Double.parseDouble(xy[1]) * sy;
+            }
+            return m;
+        } catch (NumberFormatException e) {
+            throw new IOException(f + ": " + e.getMessage());
+        }
+    }
+}
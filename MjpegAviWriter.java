@@ -0,0 +1,202 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Streams frames into a Motion-JPEG AVI (RIFF AVI 1.0, one video stream).
+// Each frame is JPEG-encoded and appended as a '00dc' chunk as soon as it
+// arrives; the header fields that depend on the frame count and the
+// chunk sizes are patched in, and the idx1 index appended, on close.
+//
+//   RIFF 'AVI '
+//     LIST 'hdrl'  avih, LIST 'strl' (strh, strf)
+//     LIST 'movi'  00dc ...
+//     idx1
+public class MjpegAviWriter extends SequenceWriter {
+
+    public static final String FORMAT = "avi";
+
+    // File offsets of the fields patched on close
+    private static final int RIFF_SIZE = 4;
+    private static final int AVIH_TOTAL_FRAMES = 48;
+    private static final int AVIH_BUFFER_SIZE = 60;
+    private static final int STRH_LENGTH = 140;
+    private static final int STRH_BUFFER_SIZE = 144;
+    private static final int MOVI_SIZE = 216;
+    private static final int MOVI_START = 220;  // position of the 'movi' fourcc
+    private static final int HEADER_SIZE = 224;
+
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ImageWriter jpeg;
+    private final ImageWriteParam param;
+    private final int framesPerSecond;
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private BufferedImage rgb;      // reused RGB copy, JPEG has no alpha
+    private int width, height;
+    private int frames = 0;
+    private int maxChunk = 0;
+    private int[] index = new int[256]; // offset, size pairs relative to MOVI_START;
+                                        // the only state that grows, 8 bytes a frame
+
+    public MjpegAviWriter(File f, int framesPerSecond, float quality) throws IOException {
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("jpg");
+        if (!it.hasNext())
+            throw new IOException("No ImageIO writer for jpg");
+        jpeg = it.next();
+        param = jpeg.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        f.delete();
+        file = new RandomAccessFile(f, "rw");
+        channel = file.getChannel();
+        this.framesPerSecond = framesPerSecond;
+    }
+
+    @Override
+    protected void writeFrame(BufferedImage frame) throws IOException {
+        if (frames == 0) {
+            width = frame.getWidth();
+            height = frame.getHeight();
+            rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            writeHeader();
+        }
+
+        // Encode the frame to JPEG in memory
+        long start = System.nanoTime();
+        Graphics2D g = rgb.createGraphics();
+        g.drawImage(frame, 0, 0, width, height, null);
+        g.dispose();
+        encoded.reset();
+        try (ImageOutputStream out = new MemoryCacheImageOutputStream(encoded)) {
+            jpeg.setOutput(out);
+            jpeg.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            jpeg.setOutput(null);
+        }
+
+        // Append it as a padded '00dc' chunk
+        long encodedAt = System.nanoTime();
+        int size = encoded.size();
+        long offset = channel.size();
+        ByteBuffer chunk = le(8);
+        chunk.put(fourcc("00dc")).putInt(size).flip();
+        channel.write(chunk, offset);
+        channel.write(ByteBuffer.wrap(encoded.toByteArray(), 0, size), offset + 8);
+        if ((size & 1) != 0)
+            channel.write(ByteBuffer.wrap(new byte[1]), offset + 8 + size);
+
+        if (2 * frames + 2 > index.length)
+            index = Arrays.copyOf(index, index.length * 2);
+        index[2 * frames] = (int)(offset - MOVI_START);
+        index[2 * frames + 1] = size;
+        frames++;
+        maxChunk = Math.max(maxChunk, size);
+        recordOutput(FORMAT, encodedAt - start, System.nanoTime() - encodedAt, 8 + size + (size & 1));
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer h = le(HEADER_SIZE);
+        h.put(fourcc("RIFF")).putInt(0).put(fourcc("AVI "));
+        h.put(fourcc("LIST")).putInt(192).put(fourcc("hdrl"));
+
+        // Main AVI header
+        h.put(fourcc("avih")).putInt(56);
+        h.putInt(1000000 / framesPerSecond);    // microseconds per frame
+        h.putInt(0);                            // max bytes per second
+        h.putInt(0);                            // padding granularity
+        h.putInt(AVIF_HASINDEX);
+        h.putInt(0);                            // total frames, patched
+        h.putInt(0);                            // initial frames
+        h.putInt(1);                            // streams
+        h.putInt(0);                            // suggested buffer size, patched
+        h.putInt(width).putInt(height);
+        h.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        // Stream header
+        h.put(fourcc("LIST")).putInt(116).put(fourcc("strl"));
+        h.put(fourcc("strh")).putInt(56);
+        h.put(fourcc("vids")).put(fourcc("MJPG"));
+        h.putInt(0);                            // flags
+        h.putShort((short)0).putShort((short)0);// priority, language
+        h.putInt(0);                            // initial frames
+        h.putInt(1).putInt(framesPerSecond);    // scale, rate
+        h.putInt(0);                            // start
+        h.putInt(0);                            // length, patched
+        h.putInt(0);                            // suggested buffer size, patched
+        h.putInt(-1);                           // quality
+        h.putInt(0);                            // sample size
+        h.putShort((short)0).putShort((short)0).putShort((short)width).putShort((short)height);
+
+        // Stream format
+        h.put(fourcc("strf")).putInt(40);
+        h.putInt(40).putInt(width).putInt(height);
+        h.putShort((short)1).putShort((short)24);
+        h.put(fourcc("MJPG"));
+        h.putInt(width * height * 3);
+        h.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        h.put(fourcc("LIST")).putInt(0).put(fourcc("movi"));
+        h.flip();
+        channel.write(h, 0);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        try {
+            if (frames > 0) {
+                // Append the index
+                long moviEnd = channel.size();
+                ByteBuffer idx = le(8 + 16 * frames);
+                idx.put(fourcc("idx1")).putInt(16 * frames);
+                for (int i = 0; i < frames; i++)
+                    idx.put(fourcc("00dc")).putInt(AVIIF_KEYFRAME).putInt(index[2 * i]).putInt(index[2 * i + 1]);
+                idx.flip();
+                channel.write(idx, moviEnd);
+
+                // Patch sizes and counts
+                patch(RIFF_SIZE, (int)(channel.size() - 8));
+                patch(AVIH_TOTAL_FRAMES, frames);
+                patch(AVIH_BUFFER_SIZE, maxChunk + 8);
+                patch(STRH_LENGTH, frames);
+                patch(STRH_BUFFER_SIZE, maxChunk + 8);
+                patch(MOVI_SIZE, (int)(moviEnd - MOVI_START));
+            }
+        } finally {
+            jpeg.dispose();
+            file.close();
+        }
+    }
+
+    private void patch(long position, int value) throws IOException {
+        ByteBuffer b = le(4);
+        b.putInt(value).flip();
+        channel.write(b, position);
+    }
+
+    private static ByteBuffer le(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] fourcc(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
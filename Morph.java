@@ -3,6 +3,13 @@ import java.awt.event.WindowEvent;
 
 public class Morph {
     public static void main(String[] args) {
+        // With arguments, render headless from the command line
+        if (args.length > 0) {
+            System.setProperty("java.awt.headless", "true");
+            MorphBatch.main(args);
+            return;
+        }
+
         MorphWindow M = new MorphWindow();
         M.addWindowListener(new WindowAdapter() {
             @Override
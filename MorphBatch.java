@@ -0,0 +1,200 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+// Headless batch renderer. Renders one morph from two images and their saved
+// control point meshes through the same pipeline as the window, without
+// creating any Swing component, so it can run on machines with no display:
+//
+//   java Morph first.jpg first.mesh second.jpg second.mesh [options]
+//
+// Exits with 0 on success, 1 on a render or I/O failure and 2 on bad usage.
+public class MorphBatch {
+
+    private static final String USAGE =
+            "usage: java Morph <first image> <first mesh> <second image> <second mesh> [options]\n"
+            + "  --fps N          frames per second (default " + MorphWindow.DEFAULT_FPS + ")\n"
+            + "  --seconds N      length of the morph (default " + MorphWindow.DEFAULT_SECS + ")\n"
+            + "  --size WxH       resample both images to W x H before morphing\n"
+            + "  --format F       output format: " + String.join(", ", MorphExporter.FORMATS)
+            + " (default " + FrameWriter.JPEG + ")\n"
+            + "  --quality Q      JPEG quality, 0-100 (default " + Math.round(FrameWriter.DEFAULT_QUALITY * 100) + ")\n"
+            + "  --sampling S     nearest (draft), bilinear (default) or bicubic (final)\n"
+            + "  --threads N      frames rendered in parallel (default " + MorphRenderer.DEFAULT_THREADS + ")\n"
+            + "  --tiles          also split each frame into row bands\n"
+            + "  --memory MB      render in tiles within MB megabytes, reading only the parts of\n"
+            + "                   the images each tile needs; for images larger than the heap\n"
+            + "                   (raw output only; --size subsamples instead of resampling)\n"
+            + "  --out DIR        output directory (default renders)\n"
+            + "  --quiet          print nothing but errors";
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    public static int run(String[] args) {
+        String[] inputs = new String[4];
+        int n = 0;
+        int fps = MorphWindow.DEFAULT_FPS, seconds = MorphWindow.DEFAULT_SECS;
+        int width = 0, height = 0;
+        int threads = MorphRenderer.DEFAULT_THREADS;
+        long memory = 0;
+        String format = FrameWriter.JPEG;
+        float quality = FrameWriter.DEFAULT_QUALITY;
+        Object sampling = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+        boolean tiles = false, quiet = false;
+        File out = new File("renders");
+
+        // Parse arguments
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("--fps"))
+                    fps = positive(a, value(args, ++i));
+                else if (a.equals("--seconds"))
+                    seconds = positive(a, value(args, ++i));
+                else if (a.equals("--size")) {
+                    String[] wh = value(args, ++i).toLowerCase().split("x");
+                    if (wh.length != 2)
+                        throw new IllegalArgumentException("--size takes WxH");
+                    width = positive(a, wh[0]);
+                    height = positive(a, wh[1]);
+                }
+                else if (a.equals("--format"))
+                    format = value(args, ++i).toLowerCase();
+                else if (a.equals("--quality")) {
+                    int q = Integer.parseInt(value(args, ++i));
+                    if (q < 0 || q > 100)
+                        throw new IllegalArgumentException("--quality must be 0-100");
+                    quality = q / 100f;
+                }
+                else if (a.equals("--sampling")) {
+                    String v = value(args, ++i).toLowerCase();
+                    if (v.equals("nearest"))
+                        sampling = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+                    else if (v.equals("bilinear"))
+                        sampling = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+                    else if (v.equals("bicubic"))
+                        sampling = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+                    else
+                        throw new IllegalArgumentException("--sampling takes nearest, bilinear or bicubic");
+                }
+                else if (a.equals("--threads"))
+                    threads = positive(a, value(args, ++i));
+                else if (a.equals("--tiles"))
+                    tiles = true;
+                else if (a.equals("--memory"))
+                    memory = positive(a, value(args, ++i)) * (1L << 20);
+                else if (a.equals("--out"))
+                    out = new File(value(args, ++i));
+                else if (a.equals("--quiet"))
+                    quiet = true;
+                else if (a.startsWith("--") || n == inputs.length)
+                    throw new IllegalArgumentException("unexpected argument " + a);
+                else
+                    inputs[n++] = a;
+            }
+            if (n < inputs.length)
+                throw new IllegalArgumentException("two images and two meshes are required");
+            if (memory > 0 && !format.equals(FrameStore.FORMAT))
+                throw new IllegalArgumentException("--memory needs --format " + FrameStore.FORMAT);
+            new MorphExporter(out, format, fps);
+        } catch (IllegalArgumentException e) {
+            System.err.println("morph: " + e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        try {
+            // Meshes are read into unit coordinates and the renderer scales
+            // them to each image, so mesh files from any editor size work
+            Mesh firstMesh = Mesh.read(new File(inputs[1]), 1, 1);
+            Mesh secondMesh = Mesh.read(new File(inputs[3]), 1, 1);
+            if (!firstMesh.sameShape(secondMesh))
+                throw new IOException("meshes differ in size: " + firstMesh.getRows() + " x " + firstMesh.getCols()
+                        + " and " + secondMesh.getRows() + " x " + secondMesh.getCols());
+
+            if (memory > 0) {
+                renderTiled(inputs, firstMesh, secondMesh, seconds * fps, width, height, memory, threads,
+                        sampling, out, fps, quiet);
+                return 0;
+            }
+
+            // Load images as packed ints, resampled to the output size if one
+            // was given, else the second to the size of the first
+            BufferedImage first = ImageIngest.read(new File(inputs[0]), width, height);
+            BufferedImage second = ImageIngest.read(new File(inputs[2]), first.getWidth(), first.getHeight());
+
+            MorphRenderer renderer = new MorphRenderer(first, second, firstMesh, secondMesh,
+                    seconds * fps, 1, 1);
+            renderer.setThreads(threads);
+            renderer.setTileParallel(tiles);
+            renderer.setInterpolation(sampling);
+
+            MorphExporter exporter = new MorphExporter(out, format, fps);
+            exporter.setQuality(quality);
+            exporter.export(renderer, null, null);
+
+            if (!quiet) {
+                System.out.println("Wrote " + (format.equals(FrameWriter.JPEG) || format.equals(FrameWriter.PNG)
+                        ? out.getPath() : exporter.getOutputFile(0).getPath()) + ", "
+                        + renderer.getWidth() + " x " + renderer.getHeight());
+                System.out.print(renderer.getMetrics().snapshot());
+            }
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("morph: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // Render with TiledMorphRenderer, keeping the images on disk. The frame
+    // is the first image's size, or width x height with each image read at
+    // the largest whole subsampling that does not go below it.
+    private static void renderTiled(String[] inputs, Mesh firstMesh, Mesh secondMesh, int frames,
+                                    int width, int height, long memory, int threads, Object sampling,
+                                    File out, int fps, boolean quiet) throws IOException {
+        try (ImageRegionReader first = new ImageRegionReader(new File(inputs[0]));
+             ImageRegionReader second = new ImageRegionReader(new File(inputs[2]))) {
+            if (width == 0) {
+                width = first.getWidth();
+                height = first.getHeight();
+            }
+            first.setSubsampling(Math.min(first.getSourceWidth() / width, first.getSourceHeight() / height));
+            second.setSubsampling(Math.min(second.getSourceWidth() / width, second.getSourceHeight() / height));
+
+            TiledMorphRenderer renderer = new TiledMorphRenderer(first, second, firstMesh, secondMesh,
+                    frames, 1, 1, width, height);
+            renderer.setMemoryBudget(memory);
+            renderer.setThreads(threads);
+            renderer.setInterpolation(sampling);
+            MorphExporter exporter = new MorphExporter(out, FrameStore.FORMAT, fps);
+            exporter.export(renderer);
+
+            if (!quiet) {
+                System.out.println("Wrote " + exporter.getOutputFile(0).getPath() + ", " + width + " x " + height
+                        + " in tiles within " + (memory >> 20) + " MB");
+                System.out.print(renderer.getMetrics().snapshot());
+            }
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length)
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        return args[i];
+    }
+
+    private static int positive(String option, String s) {
+        int v;
+        try {
+            v = Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " takes a number, not " + s);
+        }
+        if (v < 1)
+            throw new IllegalArgumentException(option + " must be at least 1");
+        return v;
+    }
+}
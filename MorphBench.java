@@ -0,0 +1,269 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+// Benchmark cases for each stage of the render pipeline and for whole
+// frames and renders:
+//
+//   solve      interpolate the tween mesh and solve every triangle's affine
+//   warp       warp one image through a solved mesh
+//   blend      warp two images through a solved mesh and blend them in one
+//              pass, as the renderer does
+//   composite  cross-dissolve two images with AlphaComposite, the separate
+//              pass blend replaces, for comparison
+//   encode     JPEG-encode one frame into memory
+//   frame      one full frame (mesh, solves and blend), optionally
+//              with row bands warped on `threads` threads
+//   render     a whole morph of RENDER_FRAMES frames on `threads` workers
+//
+// The JMH benchmarks in jmh/bench run these over image size, grid size,
+// sampling quality and thread count; JMH only takes benchmarks in a named
+// package, so they reach this class by name. Build and run them with
+//
+//   mvn -Pbench package
+//   java -jar target/benchmarks.jar -prof gc -rf csv -rff base.csv
+//
+// -prof gc adds the allocation rate and bytes per operation, on every
+// thread still alive when an iteration ends (see FrameBenchmark). A later
+// run can be compared against a saved one, exiting with 1 if any benchmark
+// got slower by more than the tolerance, so a run can gate a release:
+//
+//   java MorphBench base.csv new.csv 10
+//
+// The kernels in use follow the benchmark JVM: pass
+// -jvmArgsAppend "--add-modules jdk.incubator.vector" for the SIMD ones.
+public class MorphBench {
+
+    public static final int RENDER_FRAMES = 24;
+
+    private static final String NEAREST = "nearest", BICUBIC = "bicubic";
+
+    private MorphBench() {}
+
+    // Build the inputs of one case and return the operation to time. The
+    // operation returns what it produced, for the caller to consume.
+    public static Supplier<Object> setUp(String stage, final int width, final int height, final int grid,
+                                         String sampling, int threads) throws IOException {
+        final BufferedImage first = testImage(width, height, 1);
+        final BufferedImage second = testImage(width, height, 2);
+        final Object interpolation = sampling.equals(NEAREST) ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+                : sampling.equals(BICUBIC) ? RenderingHints.VALUE_INTERPOLATION_BICUBIC
+                : RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+
+        switch (stage) {
+        case "solve": {
+            final Mesh from = Mesh.grid(grid, width, height);
+            final Mesh to = jitter(from, grid, width, height, 7);
+            final Mesh tween = new Mesh(from.getRows(), from.getCols());
+            final double[] affines = new double[6 * from.getTriangleCount()];
+            final boolean[] solved = new boolean[from.getTriangleCount()];
+            return () -> {
+                Mesh.lerp(from, to, 0.5, tween);
+                MorphTools.solveMesh(from, tween, affines, solved);
+                return affines;
+            };
+        }
+        case "warp": {
+            final Mesh from = Mesh.grid(grid, width, height);
+            final Mesh tween = jitter(from, grid, width, height, 7);
+            final double[] affines = new double[6 * from.getTriangleCount()];
+            final boolean[] solved = new boolean[from.getTriangleCount()];
+            MorphTools.solveMesh(from, tween, affines, solved);
+            final PixelBuffer src = new PixelBuffer(first);
+            final PixelBuffer dst = new PixelBuffer(new BufferedImage(width, height, first.getType()));
+            return () -> {
+                MorphTools.warpMesh(src, dst, tween, affines, solved, interpolation, 0, height - 1);
+                return dst;
+            };
+        }
+        case "blend": {
+            final Mesh from = Mesh.grid(grid, width, height);
+            final Mesh tween = jitter(from, grid, width, height, 7);
+            final double[] affines1 = new double[6 * from.getTriangleCount()];
+            final double[] affines2 = new double[6 * from.getTriangleCount()];
+            final boolean[] solved = new boolean[from.getTriangleCount()];
+            MorphTools.solveMesh(from, tween, affines1, solved);
+            MorphTools.solveMesh(jitter(from, grid, width, height, 11), tween, affines2, solved);
+            final PixelBuffer src1 = new PixelBuffer(first), src2 = new PixelBuffer(second);
+            final PixelBuffer dst = new PixelBuffer(new BufferedImage(width, height, first.getType()));
+            return () -> {
+                MorphTools.blendMesh(src1, src2, dst, tween, affines1, affines2, solved,
+                        0.5, interpolation, 0, height - 1);
+                return dst;
+            };
+        }
+        case "composite": {
+            final BufferedImage dst = new BufferedImage(width, height, first.getType());
+            final Composite blend = AlphaComposite.SrcOver.derive(0.5f);
+            return () -> {
+                Graphics2D g = dst.createGraphics();
+                g.setComposite(blend);
+                g.drawImage(second, 0, 0, width, height, null);
+                g.dispose();
+                return dst;
+            };
+        }
+        case "encode": {
+            final ImageWriter writer = ImageIO.getImageWritersByFormatName(FrameWriter.JPEG).next();
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(FrameWriter.DEFAULT_QUALITY);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final IIOImage image = new IIOImage(first, null, null);
+            return () -> {
+                out.reset();
+                try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+                    writer.setOutput(stream);
+                    writer.write(null, image, param);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return out;
+            };
+        }
+        case "frame":
+        case "render": {
+            Mesh initial = Mesh.grid(grid, width, height);
+            final MorphRenderer renderer = new MorphRenderer(first, second, initial,
+                    jitter(initial, grid, width, height, 7), RENDER_FRAMES, width, height);
+            renderer.setInterpolation(interpolation);
+            if (stage.equals("frame")) {
+                renderer.setTileParallel(threads > 1);
+                renderer.setTileThreads(threads);
+                final MorphRenderer.Buffers buffers = renderer.createBuffers();
+                return () -> renderer.renderFrame(RENDER_FRAMES / 2, buffers);
+            }
+            renderer.setThreads(threads);
+            final BufferedImage[] last = new BufferedImage[1];
+            return () -> {
+                renderer.render((index, frame) -> {
+                    if (index == RENDER_FRAMES - 1)
+                        last[0] = frame;
+                });
+                return last[0];
+            };
+        }
+        default:
+            throw new IllegalArgumentException("unknown stage " + stage);
+        }
+    }
+
+    // Smooth gradient with some fine detail, so encoding does real work
+    private static BufferedImage testImage(int width, int height, int seed) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random r = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = x * 255 / width, green = y * 255 / height, blue = (x ^ y ^ r.nextInt(32)) & 255;
+                img.setRGB(x, y, red << 16 | green << 8 | blue);
+            }
+        }
+        return img;
+    }
+
+    // Copy of grid mesh m with every inner point moved by up to a third of a cell
+    private static Mesh jitter(Mesh m, int gridSize, int width, int height, long seed) {
+        Random r = new Random(seed);
+        Mesh j = m.copy();
+        double cw = width / (gridSize + 1.0), ch = height / (gridSize + 1.0);
+        for (int row = 1; row < m.getRows() - 1; row++) {
+            for (int col = 1; col < m.getCols() - 1; col++) {
+                j.set(row, col, m.getX(row, col) + (r.nextDouble() - 0.5) * cw * 0.66,
+                        m.getY(row, col) + (r.nextDouble() - 0.5) * ch * 0.66);
+            }
+        }
+        return j;
+    }
+
+    // Compare two JMH runs saved with -rf csv
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("usage: java MorphBench BASELINE.csv RESULTS.csv [TOLERANCE_PERCENT]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        if (!compare(readCsv(new File(args[0])), readCsv(new File(args[1])), tolerance))
+            System.exit(1);
+    }
+
+    // Score of every benchmark and parameter set in a JMH CSV result file,
+    // leaving out secondary results such as the gc profiler's
+    private static Map<String, Double> readCsv(File f) throws IOException {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+            List<String> header = fields(in.readLine());
+            int score = header.indexOf("Score");
+            String line;
+            while ((line = in.readLine()) != null) {
+                List<String> row = fields(line);
+                if (row.size() != header.size() || row.get(0).contains(":"))
+                    continue;
+                // Benchmark name and parameter values
+                StringBuilder key = new StringBuilder(row.get(0));
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).startsWith("Param: ") && !row.get(i).isEmpty())
+                        key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+                }
+                scores.put(key.toString(), Double.parseDouble(row.get(score)));
+            }
+        }
+        return scores;
+    }
+
+    // Fields of one CSV line, unquoted
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char ch = line.charAt(i);
+            if (ch == '"')
+                quoted = !quoted;
+            else if (ch == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else
+                field.append(ch);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    // Report every benchmark more than tolerance percent slower than
+    // baseline; true if there were none. Scores are times per operation.
+    private static boolean compare(Map<String, Double> baseline, Map<String, Double> results, double tolerance) {
+        boolean ok = true;
+        for (Map.Entry<String, Double> e : results.entrySet()) {
+            Double before = baseline.get(e.getKey());
+            if (before == null || before <= 0)
+                continue;
+            double change = (e.getValue() - before) / before * 100;
+            if (change > tolerance) {
+                System.out.printf(Locale.ROOT, "REGRESSION %s: %.3f -> %.3f (%+.1f%%)%n",
+                        e.getKey(), before, e.getValue(), change);
+                ok = false;
+            }
+        }
+        if (ok)
+            System.out.println("No regressions beyond " + tolerance + "%");
+        return ok;
+    }
+}
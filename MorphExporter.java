@@ -0,0 +1,173 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+// Runs a MorphRenderer and sends its frames to one of the output formats:
+// numbered JPEG or PNG files, a raw FrameStore, an animated GIF or an
+// MJPEG AVI, all inside dir. Shared by the window and the batch renderer.
+public class MorphExporter {
+
+    public static final String[] FORMATS = {FrameWriter.JPEG, FrameWriter.PNG, FrameStore.FORMAT,
+            GifSequenceWriter.FORMAT, MjpegAviWriter.FORMAT};
+
+    private final File dir;
+    private final String format;
+    private final int framesPerSecond;
+    private float quality = FrameWriter.DEFAULT_QUALITY;    // JPEG quality, also used inside AVI
+    private int encoders = FrameWriter.DEFAULT_ENCODERS;
+    private FrameStore frameStore;  // store for raw output, created on demand if not set
+
+    public MorphExporter(File dir, String format, int framesPerSecond) {
+        boolean known = false;
+        for (String f : FORMATS)
+            known |= f.equals(format);
+        if (!known)
+            throw new IllegalArgumentException("Unknown output format " + format);
+        this.dir = dir;
+        this.format = format;
+        this.framesPerSecond = framesPerSecond;
+    }
+
+    public void setQuality(float q) {
+        quality = q;
+    }
+
+    public void setEncoders(int n) {
+        encoders = n;
+    }
+
+    // Use store for raw output; the caller keeps ownership and closes it
+    public void setFrameStore(FrameStore store) {
+        frameStore = store;
+    }
+
+    public File getFrameStoreFile() {
+        return new File(dir, "frames" + FrameStore.EXTENSION);
+    }
+
+    // Whether format writes each frame to a file of its own
+    public static boolean hasFrameFiles(String format) {
+        return format.equals(FrameWriter.JPEG) || format.equals(FrameWriter.PNG);
+    }
+
+    // File frame index is written to, or the single container file
+    public File getOutputFile(int index) {
+        if (format.equals(FrameStore.FORMAT))
+            return getFrameStoreFile();
+        if (format.equals(GifSequenceWriter.FORMAT) || format.equals(MjpegAviWriter.FORMAT))
+            return new File(dir, "morph." + format);
+        return new File(dir, index + "." + format);
+    }
+
+    // Render every frame of renderer to the output. Each frame is passed to
+    // rendered as soon as it is rendered and to written once it is in the
+    // output; either may be null. Blocks until done or
+    // cancelled. Output times and sizes are added to the renderer's metrics.
+    public void export(MorphRenderer renderer, FrameSink rendered, FrameSink written) throws IOException {
+        dir.mkdirs();
+        RenderMetrics metrics = renderer.getMetrics();
+        if (format.equals(FrameWriter.JPEG) || format.equals(FrameWriter.PNG)) {
+            // Frames are encoded and written on the writer's own threads while rendering continues
+            FrameWriter writer = new FrameWriter(dir, format, quality, encoders, written);
+            writer.setMetrics(metrics);
+            try {
+                renderer.render(chain(rendered, writer, null));
+            } catch (RuntimeException e) {
+                // Report the render failure rather than anything close runs into
+                try {
+                    writer.close();
+                } catch (IOException e1) {}
+                throw e;
+            }
+            writer.close();
+            return;
+        }
+
+        // Raw output copies every frame into its slot of the mapped frame store;
+        // GIF and AVI output streams frames in order into a single file
+        SequenceWriter sequence = null;
+        FrameStore ownStore = null;
+        FrameSink output;
+        if (format.equals(FrameStore.FORMAT)) {
+            if (frameStore == null) {
+                ownStore = FrameStore.create(getFrameStoreFile(), renderer.getWidth(), renderer.getHeight(),
+                        4, renderer.getFrames());
+            }
+            FrameStore store = frameStore != null ? frameStore : ownStore;
+            store.setMetrics(metrics);
+            output = store;
+        }
+        else {
+            File f = getOutputFile(0);
+            if (format.equals(GifSequenceWriter.FORMAT))
+                sequence = new GifSequenceWriter(f, framesPerSecond);
+            else
+                sequence = new MjpegAviWriter(f, framesPerSecond, quality);
+            sequence.setMetrics(metrics);
+            // Frames can wait in the writer for earlier ones, so it says when each is written
+            sequence.setListener(written);
+            output = sequence;
+        }
+
+        try {
+            renderer.render(chain(rendered, output, sequence != null ? null : written));
+        } catch (RuntimeException e) {
+            try {
+                if (sequence != null)
+                    sequence.close();
+                if (ownStore != null)
+                    ownStore.close();
+            } catch (IOException e1) {}
+            throw e;
+        }
+        if (sequence != null)
+            sequence.close();
+        if (ownStore != null)
+            ownStore.close();
+    }
+
+    // Render every frame of a tiled renderer into the raw frame store, tile
+    // by tile as they are finished; raw is the only output that takes
+    // frames in pieces. Opaque morphs are stored with three channels.
+    public void export(TiledMorphRenderer renderer) throws IOException {
+        if (!format.equals(FrameStore.FORMAT))
+            throw new IllegalArgumentException("tiled renders can only be written as " + FrameStore.FORMAT);
+        dir.mkdirs();
+        FrameStore ownStore = null;
+        if (frameStore == null) {
+            ownStore = FrameStore.create(getFrameStoreFile(), renderer.getWidth(), renderer.getHeight(),
+                    renderer.isOpaque() ? 3 : 4, renderer.getFrames());
+        }
+        FrameStore store = frameStore != null ? frameStore : ownStore;
+        store.setMetrics(renderer.getMetrics());
+        try {
+            renderer.render(store);
+        } finally {
+            if (ownStore != null)
+                ownStore.close();
+        }
+    }
+
+    // Sink passing each frame to first, output and last in turn, skipping nulls
+    private static FrameSink chain(final FrameSink first, final FrameSink output, final FrameSink last) {
+        return new FrameSink() {
+            @Override
+            public void frameRendered(int index, BufferedImage frame) {
+                if (first != null)
+                    first.frameRendered(index, frame);
+                output.frameRendered(index, frame);
+                if (last != null)
+                    last.frameRendered(index, frame);
+            }
+
+            @Override
+            public void abort(Throwable cause) {
+                if (first != null)
+                    first.abort(cause);
+                output.abort(cause);
+                if (last != null)
+                    last.abort(cause);
+            }
+        };
+    }
+}
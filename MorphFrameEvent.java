@@ -0,0 +1,33 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Flight Recorder event covering the rendering of one frame, with the time
+// spent in each stage. Emitted by MorphRenderer.renderFrame.
+@Name("morph.Frame")
+@Label("Morph Frame")
+@Category("Morph")
+@Description("Rendering of one morph frame")
+@StackTrace(false)
+public class MorphFrameEvent extends Event {
+
+    @Label("Frame")
+    int index;
+
+    @Label("Mesh")
+    @Timespan(Timespan.NANOSECONDS)
+    long meshTime;
+
+    @Label("Solve")
+    @Timespan(Timespan.NANOSECONDS)
+    long solveTime;
+
+    @Label("Warp")
+    @Description("Warping and blending both images")
+    @Timespan(Timespan.NANOSECONDS)
+    long warpTime;
+}
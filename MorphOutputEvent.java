@@ -0,0 +1,36 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Flight Recorder event covering the encoding and writing of one frame.
+// Emitted by the frame writers, store and sequence writers.
+@Name("morph.Output")
+@Label("Morph Output")
+@Category("Morph")
+@Description("Encoding and writing of one morph frame")
+@StackTrace(false)
+public class MorphOutputEvent extends Event {
+
+    @Label("Frame")
+    int index;
+
+    @Label("Format")
+    String format;
+
+    @Label("Encode")
+    @Timespan(Timespan.NANOSECONDS)
+    long encodeTime;
+
+    @Label("Write")
+    @Timespan(Timespan.NANOSECONDS)
+    long writeTime;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
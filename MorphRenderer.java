@@ -0,0 +1,498 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MorphRenderer {
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int BAND_ROWS = 64;     // tallest destination band warped as one task
+
+    private BufferedImage imageInit, imageFin;  // source images, only ever read
+    private Mesh initMesh1, finalMesh1;     // control points scaled to the first image
+    private Mesh finalMesh2;                // final control points scaled to the second image
+    private int frames;             // total number of frames in the morph
+    private int threads;            // number of frames rendered concurrently
+    private boolean tileParallel;   // warp row bands of each frame concurrently
+    private int tileThreads;        // parallelism of the band pool
+    private ForkJoinPool tilePool;  // created on first tile-parallel frame
+    private Object interpolation;   // RenderingHints interpolation value, null for bilinear
+    private RenderMetrics metrics = new RenderMetrics();
+    private boolean skipStatic = true;  // render triangles that never move only once
+    private IntensityLut initLut, finLut;   // intensity applied to each image while sampling, or null
+    private StaticLayer staticLayer;    // built on first use
+    private volatile boolean cancelled;
+
+    // Per-worker frame buffer and scratch space, so rendering a frame
+    // allocates nothing once a worker is running
+    public class Buffers {
+        final BufferedImage frame;
+        final PixelBuffer initSrc, finSrc, dst;
+        final StaticLayer layer;    // triangles that never move, null if not used
+        final Mesh tween;           // interpolated mesh of the current frame, in frame coordinates
+        final Mesh moving;          // view of tween with only the triangles warped every frame
+        final double[] initAffines; // inverse affine of every moving triangle into the first image
+        final double[] finAffines;  // and into the second
+        final boolean[] solved;     // whether each triangle has them
+        long meshNanos, solveNanos, warpNanos;  // stage times of the current frame
+
+        Buffers() {
+            frame = createTween(imageInit);
+            initSrc = new PixelBuffer(imageInit, initLut);
+            finSrc = new PixelBuffer(imageFin, finLut);
+            dst = new PixelBuffer(frame);
+            layer = skipStatic ? staticLayer() : null;
+            tween = new Mesh(initMesh1.getRows(), initMesh1.getCols());
+            moving = layer != null ? tween.withTriangles(layer.moving) : tween;
+            initAffines = new double[6 * moving.getTriangleCount()];
+            finAffines = new double[6 * moving.getTriangleCount()];
+            solved = new boolean[moving.getTriangleCount()];
+        }
+    }
+
+    // Triangles whose vertices are the same in the initial and final meshes
+    // cover the same pixels, sampled from the same source positions, in
+    // every frame. Their pixels from both images are warped once, when the
+    // layer is built, and each frame only blends them.
+    static class StaticLayer {
+        private static final int BAND_PIXELS = 1 << 20;    // pixels warped per band while building
+        final boolean[] moving;     // triangles that move and are warped per frame
+        final int[] spans;          // runs of static pixels, see MorphTools.blendSpans
+        final int[] rowSpans;
+        final int[] initPixels, finPixels;
+        final long area;            // static pixels per frame
+
+        StaticLayer(PixelBuffer initSrc, PixelBuffer finSrc, Mesh initMesh, Mesh finalMesh, Mesh finalMesh2,
+                    int width, int height, Object interpolation) {
+            int count = initMesh.getTriangleCount();
+            moving = new boolean[count];
+            boolean[] still = new boolean[count];
+            for (int t = 0; t < count; t++) {
+                moving[t] = !initMesh.sameTriangle(finalMesh, t);
+                still[t] = !moving[t];
+            }
+
+            // Warp the static triangles of both images, and a solid colour
+            // to find which pixels they cover
+            Mesh statics = initMesh.withTriangles(still);
+            double[] initAffines = new double[6 * statics.getTriangleCount()];
+            double[] finAffines = new double[6 * statics.getTriangleCount()];
+            boolean[] solved = new boolean[statics.getTriangleCount()];
+            MorphTools.solveMesh(initMesh, statics, initAffines, solved);
+            MorphTools.solveMesh(finalMesh2, statics, finAffines, solved);
+
+            // Warp a band of rows at a time, so that only the pixels kept
+            // take memory in proportion to the frame
+            int bandRows = Math.max(1, Math.min(height, BAND_PIXELS / width));
+            BufferedImage white = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+            white.setRGB(0, 0, 0xffffffff);
+            PixelBuffer cover = new PixelBuffer(white);
+            BufferedImage maskBand = new BufferedImage(width, bandRows, BufferedImage.TYPE_INT_ARGB);
+            BufferedImage initBand = new BufferedImage(width, bandRows, BufferedImage.TYPE_INT_ARGB);
+            BufferedImage finBand = new BufferedImage(width, bandRows, BufferedImage.TYPE_INT_ARGB);
+            int[] mask = ((DataBufferInt) maskBand.getRaster().getDataBuffer()).getData();
+            int[] init = ((DataBufferInt) initBand.getRaster().getDataBuffer()).getData();
+            int[] fin = ((DataBufferInt) finBand.getRaster().getDataBuffer()).getData();
+
+            // Count the covered pixels and their runs
+            int runs = 0;
+            long pixels = 0;
+            for (int top = 0; top < height; top += bandRows) {
+                int rows = Math.min(bandRows, height - top);
+                Arrays.fill(mask, 0);
+                warpBand(cover, maskBand, top, rows, statics, initAffines, solved, null);
+                for (int i = 0; i < rows * width; i++) {
+                    if (mask[i] != 0) {
+                        pixels++;
+                        if (i % width == 0 || mask[i - 1] == 0)
+                            runs++;
+                    }
+                }
+            }
+
+            // Then collect them row by row into runs
+            area = pixels;
+            spans = new int[4 * runs];
+            rowSpans = new int[height + 1];
+            initPixels = new int[(int) pixels];
+            finPixels = new int[(int) pixels];
+            int n = 0, o = 0;
+            for (int top = 0; top < height; top += bandRows) {
+                int rows = Math.min(bandRows, height - top);
+                Arrays.fill(mask, 0);
+                warpBand(cover, maskBand, top, rows, statics, initAffines, solved, null);
+                warpBand(initSrc, initBand, top, rows, statics, initAffines, solved, interpolation);
+                warpBand(finSrc, finBand, top, rows, statics, finAffines, solved, interpolation);
+                for (int y = top; y < top + rows; y++) {
+                    rowSpans[y] = n / 4;
+                    for (int x = 0, i = (y - top) * width; x < width; x++, i++) {
+                        if (mask[i] == 0)
+                            continue;
+                        if (x == 0 || mask[i - 1] == 0) {
+                            spans[n++] = y;
+                            spans[n++] = x;
+                            spans[n++] = x;
+                            spans[n++] = o;
+                        }
+                        spans[n - 2] = x;
+                        initPixels[o] = init[i];
+                        finPixels[o] = fin[i];
+                        o++;
+                    }
+                }
+            }
+            rowSpans[height] = n / 4;
+        }
+
+        // Warp the static triangles of src into band, which holds the frame
+        // rows from top on
+        private static void warpBand(PixelBuffer src, BufferedImage band, int top, int rows, Mesh statics,
+                                     double[] affines, boolean[] solved, Object interpolation) {
+            MorphTools.warpMesh(src, new PixelBuffer(band, null, 0, top), statics, affines, solved, interpolation,
+                    top, top + rows - 1);
+        }
+    }
+
+    // initPoints and finalPoints are control point meshes in display coordinates
+    // (displayWidth x displayHeight) and are scaled to each image's own size
+    public MorphRenderer(BufferedImage I, BufferedImage F, Mesh initPoints, Mesh finalPoints,
+                         int frames, int displayWidth, int displayHeight) {
+        if (!initPoints.sameShape(finalPoints))
+            throw new IllegalArgumentException("control point meshes differ in size");
+        // Normally already packed at ingest; anything else is converted once
+        // here so the warp always reads int rasters
+        imageInit = ImageIngest.toPacked(I);
+        imageFin = ImageIngest.toPacked(F);
+        this.frames = frames;
+        threads = DEFAULT_THREADS;
+        tileThreads = DEFAULT_THREADS;
+
+        // Calculate factors for scaling control point grid to image sizes
+        double initialWidthFactor, initialHeightFactor, finalWidthFactor, finalHeightFactor;
+        initialWidthFactor = (double)I.getWidth()/displayWidth;
+        initialHeightFactor = (double)I.getHeight()/displayHeight;
+        finalWidthFactor = (double)F.getWidth()/displayWidth;
+        finalHeightFactor = (double)F.getHeight()/displayHeight;
+
+        // Initial and final control point positions in the first image, which
+        // is also the frame, and final positions in the second image
+        initMesh1 = initPoints.scaled(initialWidthFactor, initialHeightFactor);
+        finalMesh1 = finalPoints.scaled(initialWidthFactor, initialHeightFactor);
+        finalMesh2 = finalPoints.scaled(finalWidthFactor, finalHeightFactor);
+    }
+
+    public void setThreads(int t) {
+        threads = Math.max(1, t);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    // Split each frame into row bands warped concurrently with fork/join.
+    // Output is bit-identical to the sequential path for any thread count.
+    public void setTileParallel(boolean b) {
+        tileParallel = b;
+    }
+
+    public boolean isTileParallel() {
+        return tileParallel;
+    }
+
+    public synchronized void setTileThreads(int t) {
+        tileThreads = Math.max(1, t);
+        if (tilePool != null) {
+            tilePool.shutdown();
+            tilePool = null;
+        }
+    }
+
+    // Sampling quality, as a RenderingHints interpolation value: nearest
+    // neighbour for drafts, bilinear (the default, also used for null) or
+    // bicubic for final renders
+    public synchronized void setInterpolation(Object hint) {
+        interpolation = hint;
+        staticLayer = null;
+    }
+
+    public Object getInterpolation() {
+        return interpolation;
+    }
+
+    // Scale the color channels of each image by a factor, as the intensity
+    // sliders do, while sampling it; the images themselves are not copied.
+    // 1 leaves an image as it is.
+    public synchronized void setIntensity(float initial, float fin) {
+        initLut = initial == 1 ? null : new IntensityLut(initial);
+        finLut = fin == 1 ? null : new IntensityLut(fin);
+        staticLayer = null;
+    }
+
+    // Warp triangles that never move once and only blend them per frame.
+    // Frames are identical either way.
+    public synchronized void setSkipStatic(boolean b) {
+        skipStatic = b;
+    }
+
+    public boolean isSkipStatic() {
+        return skipStatic;
+    }
+
+    // Fraction of the frame area covered by triangles that never move
+    public double getStaticFraction() {
+        return skipStatic ? (double) staticLayer().area / (getWidth() * getHeight()) : 0;
+    }
+
+    private synchronized StaticLayer staticLayer() {
+        if (staticLayer == null) {
+            staticLayer = new StaticLayer(new PixelBuffer(imageInit, initLut), new PixelBuffer(imageFin, finLut),
+                    initMesh1, finalMesh1, finalMesh2, getWidth(), getHeight(), interpolation);
+        }
+        return staticLayer;
+    }
+
+    // Counters every frame rendered is recorded in; can be shared between
+    // renderers to total several renders
+    public void setMetrics(RenderMetrics m) {
+        metrics = m;
+    }
+
+    public RenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Ask render to stop; workers finish the frame they are on and return
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Size of the rendered frames, which is the size of the first image
+    public int getWidth() {
+        return imageInit.getWidth();
+    }
+
+    public int getHeight() {
+        return imageInit.getHeight();
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    // Render every frame and hand each one to sink. Frames are spread over a
+    // pool of worker threads, each with its own tween buffers, so frames can
+    // reach the sink out of order; index is always the frame's position.
+    // Returns early, without error, once cancel() has been called; if the
+    // calling thread is interrupted instead, the sink is aborted and an
+    // UncheckedIOException around an InterruptedIOException is thrown.
+    public void render(FrameSink sink) {
+        long start = System.nanoTime();
+        try {
+            renderAll(sink);
+        } finally {
+            metrics.addWallTime(System.nanoTime() - start);
+        }
+    }
+
+    private void renderAll(FrameSink sink) {
+        int workers = Math.min(threads, frames);
+        if (workers <= 1) {
+            try {
+                renderRange(new AtomicInteger(), sink, new AtomicReference<>());
+            } finally {
+                shutdownTilePool();
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        CompletionService<Void> results = new ExecutorCompletionService<>(pool);
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            for (int w = 0; w < workers; w++)
+                results.submit(() -> renderRange(next, sink, failure), null);
+
+            // Wait for workers as they finish, so the first failure is seen
+            // even while other workers are still busy or blocked in the sink
+            for (int w = 0; w < workers; w++)
+                results.take().get();
+        } catch (InterruptedException e) {
+            // Not a finished render: stop the workers and fail it, so the
+            // output is not closed as if every frame were in it
+            Thread.currentThread().interrupt();
+            cancelled = true;
+            pool.shutdownNow();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while rendering");
+            sink.abort(interrupted);
+            throw new UncheckedIOException(interrupted);
+        } catch (ExecutionException e) {
+            // Stop the other workers, then report the failure that started it;
+            // workers failed by the sink's abort only echo it
+            cancelled = true;
+            pool.shutdownNow();
+            Throwable cause = failure.get() != null ? failure.get() : e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+            shutdownTilePool();
+        }
+    }
+
+    private synchronized void shutdownTilePool() {
+        if (tilePool != null) {
+            tilePool.shutdown();
+            tilePool = null;
+        }
+    }
+
+    // Worker loop: claim frame indices from next until none are left. The
+    // first worker to fail records its error in failure.
+    private void renderRange(AtomicInteger next, FrameSink sink, AtomicReference<Throwable> failure) {
+        long allocated = RenderMetrics.threadAllocatedBytes();
+        try {
+            Buffers buffers = new Buffers();
+
+            int i;
+            while (!cancelled && (i = next.getAndIncrement()) < frames) {
+                sink.frameRendered(i, renderFrame(i, buffers));
+            }
+        } catch (RuntimeException | Error e) {
+            // Other workers may be waiting in the sink for this worker's frame
+            failure.compareAndSet(null, e);
+            sink.abort(e);
+            throw e;
+        } finally {
+            if (allocated >= 0)
+                metrics.addAllocated(RenderMetrics.threadAllocatedBytes() - allocated);
+        }
+    }
+
+    public Buffers createBuffers() {
+        return new Buffers();
+    }
+
+    public BufferedImage createTween(BufferedImage src) {
+        // Custom image types cannot be instantiated directly
+        int type = src.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_ARGB : src.getType();
+        return new BufferedImage(src.getWidth(), src.getHeight(), type);
+    }
+
+    // Render frame i with b and return it; the image belongs to b and is
+    // overwritten by the next frame rendered with it
+    public BufferedImage renderFrame(int i, Buffers b) {
+        // Both images move along the same mesh and are dissolved by the
+        // same fraction, so the first frame is exactly the first image and
+        // the last exactly the second
+        return renderAt(i, frames > 1 ? (double) i / (frames - 1) : 1, b);
+    }
+
+    // Render the morph at time t, 0 being the first image and 1 the
+    // second, with b; like renderFrame the image belongs to b
+    public BufferedImage renderAt(double t, Buffers b) {
+        return renderAt(-1, t, b);
+    }
+
+    private BufferedImage renderAt(int i, double t, Buffers b) {
+        MorphFrameEvent event = new MorphFrameEvent();
+        event.begin();
+        long start = System.nanoTime();
+
+        Mesh.lerp(initMesh1, finalMesh1, t, b.tween);
+        long t1 = System.nanoTime();
+
+        // Every moving triangle's inverse affine into each source image
+        MorphTools.solveMesh(initMesh1, b.moving, b.initAffines, b.solved);
+        MorphTools.solveMesh(finalMesh2, b.moving, b.finAffines, b.solved);
+        long t2 = System.nanoTime();
+
+        // Warp both images and blend them in one pass, and blend the static
+        // pixels, either straight through or band by band on the tile pool
+        if (tileParallel)
+            tilePool().invoke(new BandTask(b, t, interpolation, 0, b.dst.height - 1));
+        else
+            warpBand(b, t, interpolation, 0, b.dst.height - 1);
+        long end = System.nanoTime();
+
+        b.meshNanos = t1 - start;
+        b.solveNanos = t2 - t1;
+        b.warpNanos = end - t2;
+        metrics.addStage(RenderMetrics.MESH, b.meshNanos);
+        metrics.addStage(RenderMetrics.SOLVE, b.solveNanos);
+        metrics.addStage(RenderMetrics.WARP, b.warpNanos);
+        metrics.addFrame(end - start);
+        metrics.addArea(b.layer != null ? b.layer.area : 0, (long) b.dst.width * b.dst.height);
+        if (event.shouldCommit()) {
+            event.index = i;
+            event.meshTime = b.meshNanos;
+            event.solveTime = b.solveNanos;
+            event.warpTime = b.warpNanos;
+            event.commit();
+        }
+        return b.frame;
+    }
+
+    private static void warpBand(Buffers b, double p, Object interpolation, int rowStart, int rowEnd) {
+        MorphTools.blendMesh(b.initSrc, b.finSrc, b.dst, b.moving, b.initAffines, b.finAffines, b.solved,
+                p, interpolation, rowStart, rowEnd);
+        if (b.layer != null)
+            MorphTools.blendSpans(b.layer.initPixels, b.layer.finPixels, b.dst, b.layer.spans, b.layer.rowSpans,
+                    p, rowStart, rowEnd);
+    }
+
+    private synchronized ForkJoinPool tilePool() {
+        if (tilePool == null)
+            tilePool = new ForkJoinPool(tileThreads);
+        return tilePool;
+    }
+
+    // Warps and blends every moving triangle and static pixel in destination rows
+    // rowStart..rowEnd, splitting the rows in half until a band is at most
+    // BAND_ROWS tall. Triangles only write pixels in their own band and
+    // each pixel belongs to exactly one triangle, so the frame is identical
+    // however the bands end up scheduled.
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Buffers b;
+        private final double p;
+        private final Object interpolation;
+        private final int rowStart, rowEnd;
+
+        BandTask(Buffers b, double p, Object interpolation, int rowStart, int rowEnd) {
+            this.b = b;
+            this.p = p;
+            this.interpolation = interpolation;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowEnd - rowStart + 1 > BAND_ROWS) {
+                int mid = (rowStart + rowEnd) >>> 1;
+                invokeAll(new BandTask(b, p, interpolation, rowStart, mid),
+                        new BandTask(b, p, interpolation, mid + 1, rowEnd));
+                return;
+            }
+            warpBand(b, p, interpolation, rowStart, rowEnd);
+        }
+    }
+}
@@ -7,6 +7,41 @@ public class MorphTools
 
     public MorphTools() {}
 
+    // Sub-pixel precision used to snap destination vertices before the
+    // edge functions are evaluated. Working in integers keeps the shared
+    // edge of two adjacent triangles bit-for-bit identical on both sides.
+    private static final int SUBPIXEL_BITS = 4;
+    private static final int SUBPIXEL_ONE = 1 << SUBPIXEL_BITS;
+    private static final int SUBPIXEL_HALF = SUBPIXEL_ONE >> 1;
+
+    // Source sampling modes, picked from the INTERPOLATION rendering hint:
+    // nearest neighbour for drafts, fixed-point bilinear by default and
+    // bicubic for final renders. Each has its own pixel loop.
+    private static final int NEAREST = 0;
+    private static final int BILINEAR = 1;
+    private static final int BICUBIC = 2;
+
+    // A triangle whose area is below this fraction of its squared edge
+    // lengths is treated as collapsed and has no affine map
+    private static final double DEGENERATE_EPSILON = 1e-9;
+
+    // Source positions are stepped along each row in 32.32 fixed point:
+    // one long add per pixel, drifting at most 2^-32 pixel per step, so
+    // even a full 8K row stays far inside one 1/256 bilinear weight step
+    private static final int STEP_BITS = 32;
+    private static final double STEP_ONE = 1L << STEP_BITS;
+    private static final double STEP_UNIT = 1.0 / STEP_ONE;
+    private static final long STEP_HALF = 1L << (STEP_BITS - 1);
+
+    // Run kernels (SIMD when available) for packed int images
+    private static final PixelKernels KERNELS = PixelKernels.get();
+
+    // Per-thread sample positions and sampled rows for the bilinear run
+    // kernels: x positions, y positions and samples, each holding the run
+    // for the first source followed by the one for the second
+    private static final ThreadLocal<int[][]> ROW_SCRATCH =
+        ThreadLocal.withInitial(() -> new int[3][0]);
+
     public static void warpTriangle(
         BufferedImage src,
         BufferedImage dest,
@@ -15,137 +50,543 @@ public class MorphTools
         Object ALIASING,
         Object INTERPOLATION)
     {
+        warpTriangle(new PixelBuffer(src), new PixelBuffer(dest), S, D,
+            ALIASING, INTERPOLATION);
+    }
+
+    public static void warpTriangle(
+        PixelBuffer src,
+        PixelBuffer dest,
+        Triangle S,
+        Triangle D,
+        Object ALIASING,
+        Object INTERPOLATION)
+    {
+        warpTriangle(src, dest, S, D, ALIASING, INTERPOLATION,
+            dest.originY, dest.originY + dest.height - 1);
+    }
+
+    // Same as above but only destination rows minRow..maxRow are written,
+    // so disjoint row bands of one frame can be warped concurrently
+    public static void warpTriangle(
+        PixelBuffer src,
+        PixelBuffer dest,
+        Triangle S,
+        Triangle D,
+        Object ALIASING,
+        Object INTERPOLATION,
+        int minRow,
+        int maxRow)
+    {
 
         /*****************************************************
-         solve Xi = sx*xi + shx*yi + tx    for i = 1,2,3 where xi is a point on
-         the source triangle and Xi = the corresponding point on the
-         destination  triangle. Do the same thing for Yi = shy*y + sy*x + ty.
-         shx is the shearing of x and sx is the scaling of x and tx is the
-         translation of x needed to map one triangle to the other.
- r
-         Gaussian Elimination with scaled partial pivoting is the method
-         used solve the two systems of linear equations.
+         Every destination pixel inside D is pulled from the source, so the
+         map needed is the inverse one, from D back onto S. Only the pixels
+         of D are ever touched.
+
+         ALIASING is kept for compatibility; the rasterizer uses a top-left
+         fill rule so adjacent triangles neither overlap nor leave seams.
         ********************************************************/
-        if (ALIASING == null)
-            ALIASING = RenderingHints.VALUE_ANTIALIAS_ON;
-        if (INTERPOLATION == null)
-            INTERPOLATION = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
-        double[][] a = new double[3][3];
-        for (int i = 0; i < 3; ++i) {
-            a[i][0] = S.getX(i);
-
-            // System.out.println("P" + i + "(" + S.getX(i) + ", " + S.getY(i) +
-            // ")" );
-
-            a[i][1] = S.getY(i);
-            a[i][2] = 1.0;
+        double[] m = new double[6];
+        if (!triangleAffine(
+                D.getX(0), D.getY(0), D.getX(1), D.getY(1), D.getX(2), D.getY(2),
+                S.getX(0), S.getY(0), S.getX(1), S.getY(1), S.getX(2), S.getY(2),
+                m, 0))
+            return;
+
+        warpTriangle(src, dest,
+            D.getX(0), D.getY(0), D.getX(1), D.getY(1), D.getX(2), D.getY(2),
+            m, 0, INTERPOLATION, minRow, maxRow);
+    }
+
+    // Warp destination triangle (x0,y0) (x1,y1) (x2,y2) using an inverse
+    // affine already solved into m[off..off+5] by triangleAffine
+    public static void warpTriangle(
+        PixelBuffer src,
+        PixelBuffer dest,
+        double x0, double y0, double x1, double y1, double x2, double y2,
+        double[] m,
+        int off,
+        Object INTERPOLATION,
+        int minRow,
+        int maxRow)
+    {
+        rasterize(src, null, dest, x0, y0, x1, y1, x2, y2,
+            m[off], m[off + 1], m[off + 2], m[off + 3], m[off + 4], m[off + 5],
+            0, 0, 0, 0, 0, 0, 0, samplingMode(INTERPOLATION), minRow, maxRow);
+    }
+
+    /*****************************************************
+     Solve the inverse affine of every triangle of the mesh, mapping its
+     position in dest back onto its position in src, into affines (six
+     coefficients per triangle). solved[t] tells whether triangle t has a
+     map at all; collapsed destination triangles cover no pixels.
+    ********************************************************/
+    public static void solveMesh(Mesh src, Mesh dest, double[] affines, boolean[] solved)
+    {
+        int[] idx = dest.indices;
+        double[] sx = src.xs, sy = src.ys, dx = dest.xs, dy = dest.ys;
+        for (int t = 0, n = 0; n < idx.length; t++, n += 3) {
+            int a = idx[n], b = idx[n + 1], c = idx[n + 2];
+            solved[t] = triangleAffine(
+                dx[a], dy[a], dx[b], dy[b], dx[c], dy[c],
+                sx[a], sy[a], sx[b], sy[b], sx[c], sy[c],
+                affines, 6 * t);
         }
+    }
 
-        int l[] = new int[3];
-        Gauss(3, a, l);
+    // Warp every solved triangle of mesh dest that reaches into rows
+    // minRow..maxRow, using the affines from solveMesh
+    public static void warpMesh(
+        PixelBuffer src,
+        PixelBuffer dst,
+        Mesh dest,
+        double[] affines,
+        boolean[] solved,
+        Object INTERPOLATION,
+        int minRow,
+        int maxRow)
+    {
+        int[] idx = dest.indices;
+        double[] dx = dest.xs, dy = dest.ys;
+        for (int t = 0, n = 0; n < idx.length; t++, n += 3) {
+            if (!solved[t])
+                continue;
+            int a = idx[n], b = idx[n + 1], c = idx[n + 2];
+
+            // Skip triangles entirely above or below the rows
+            double minY = Math.min(dy[a], Math.min(dy[b], dy[c]));
+            double maxY = Math.max(dy[a], Math.max(dy[b], dy[c]));
+            if (maxY < minRow || minY > maxRow + 1)
+                continue;
 
-        double[] b = new double[3];
-        for (int i = 0; i < 3; ++i) {
-            b[i] = D.getX(i);
+            warpTriangle(src, dst, dx[a], dy[a], dx[b], dy[b], dx[c], dy[c],
+                affines, 6 * t, INTERPOLATION, minRow, maxRow);
         }
+    }
 
-        double[] x = new double[3];
-        solve(3, a, l, b, x);
+    /*****************************************************
+     Fused warp and cross-dissolve. Every destination pixel of a solved
+     triangle of mesh dest that reaches into rows minRow..maxRow is
+     sampled from src1 through affines1 and from src2 through affines2,
+     and the two samples are blended with weight p on src2, each channel
+     separately. The result is written to dst once, so a morph frame
+     needs one pass over the output rather than two warps and a
+     composite.
 
-        double[] by = new double[3];
-        for (int i = 0; i < 3; ++i) {
-            by[i] = D.getY(i);
+     Both sets of affines must come from solveMesh against the same dest
+     mesh, so one solved array serves for both.
+    ********************************************************/
+    public static void blendMesh(
+        PixelBuffer src1,
+        PixelBuffer src2,
+        PixelBuffer dst,
+        Mesh dest,
+        double[] affines1,
+        double[] affines2,
+        boolean[] solved,
+        double p,
+        Object INTERPOLATION,
+        int minRow,
+        int maxRow)
+    {
+        // Blend weight in 1/256ths; at either end only one image is visible
+        int weight = (int)Math.round(Math.max(0, Math.min(1, p)) * 256);
+        if (weight == 0) {
+            warpMesh(src1, dst, dest, affines1, solved, INTERPOLATION, minRow, maxRow);
+            return;
+        }
+        if (weight == 256) {
+            warpMesh(src2, dst, dest, affines2, solved, INTERPOLATION, minRow, maxRow);
+            return;
         }
 
-        double[] y = new double[3];
-        solve(3, a, l, by, y);
-
-        // System.out.println("Affine:\t" + x[0] + ", " + x[1] + ", " + x[2] );
-        // System.out.println("\t" + y[0] + ", " + y[1] + ", " + y[2] );
-
-        AffineTransform af =
-            new AffineTransform(x[0], y[0], x[1], y[1], x[2], y[2]);
-        GeneralPath destPath = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
-
-        destPath.moveTo((float)D.getX(0), (float)D.getY(0));
-        destPath.lineTo((float)D.getX(1), (float)D.getY(1));
-        destPath.lineTo((float)D.getX(2), (float)D.getY(2));
-        destPath.lineTo((float)D.getX(0), (float)D.getY(0));
-        Graphics2D g2 = dest.createGraphics();
-
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, ALIASING);
-        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, INTERPOLATION);
-        g2.clip(destPath);
-        g2.setTransform(af);
-        g2.drawImage(src, 0, 0, null);
-        g2.dispose();
-    }
-
-    private static void Gauss(int n, double[][] a, int[] l)
-    {
-        /****************************************************
-            a is a n x n matrix and l is an int array of length n
-            l is used as an index array that will determine the order of
-            elimination of coefficients
-            All array indexes are assumed to start at 0
-        ******************************************************/
-        double[] s = new double[n];  // scaling factor
-        int i, j = 0, k;
-        double r, rmax, smax, xmult;
-        for (i = 0; i < n; ++i) {
-            l[i] = i;
-            smax = 0;
-            for (j = 0; j < n; ++j)
-                smax = Math.max(smax, Math.abs(a[i][j]));
-            s[i] = smax;
+        int mode = samplingMode(INTERPOLATION);
+        int[] idx = dest.indices;
+        double[] dx = dest.xs, dy = dest.ys;
+        for (int t = 0, n = 0; n < idx.length; t++, n += 3) {
+            if (!solved[t])
+                continue;
+            int a = idx[n], b = idx[n + 1], c = idx[n + 2];
+
+            double minY = Math.min(dy[a], Math.min(dy[b], dy[c]));
+            double maxY = Math.max(dy[a], Math.max(dy[b], dy[c]));
+            if (maxY < minRow || minY > maxRow + 1)
+                continue;
+
+            int o = 6 * t;
+            rasterize(src1, src2, dst, dx[a], dy[a], dx[b], dy[b], dx[c], dy[c],
+                affines1[o], affines1[o + 1], affines1[o + 2],
+                affines1[o + 3], affines1[o + 4], affines1[o + 5],
+                affines2[o], affines2[o + 1], affines2[o + 2],
+                affines2[o + 3], affines2[o + 4], affines2[o + 5],
+                weight, mode, minRow, maxRow);
         }
+    }
 
-        i = n - 1;
-        for (k = 0; k < (n - 1); ++k) {
-            --j;
-            rmax = 0;
-            for (i = k; i < n; ++i) {
-                r = Math.abs(a[l[i]][k] / s[l[i]]);
-                if (r > rmax) {
-                    rmax = r;
-                    j = i;
-                }
+    /*****************************************************
+     Blend precomputed pixels into dst. spans holds four ints per run of
+     pixels, sorted by row: row, first column, last column and the offset
+     of the run's first pixel in pixels1 and pixels2. rowSpans[y] is the
+     first span of row y, rowSpans[y+1] one past its last. Each pixel is
+     blended with weight p on pixels2, the same as blendMesh does.
+    ********************************************************/
+    public static void blendSpans(
+        int[] pixels1,
+        int[] pixels2,
+        PixelBuffer dst,
+        int[] spans,
+        int[] rowSpans,
+        double p,
+        int minRow,
+        int maxRow)
+    {
+        int weight = (int)Math.round(Math.max(0, Math.min(1, p)) * 256);
+        int first = rowSpans[Math.max(0, minRow)];
+        int last = rowSpans[Math.min(dst.height - 1, maxRow) + 1];
+        int[] out = dst.getInts();
+        if (out != null) {
+            int stride = dst.getStride();
+            for (int n = 4 * first; n < 4 * last; n += 4)
+                KERNELS.blend(pixels1, spans[n + 3], pixels2, spans[n + 3], out,
+                    spans[n] * stride + spans[n + 1], spans[n + 2] - spans[n + 1] + 1, weight);
+            return;
+        }
+        for (int n = 4 * first; n < 4 * last; n += 4) {
+            int y = spans[n], o = spans[n + 3];
+            for (int x = spans[n + 1]; x <= spans[n + 2]; x++, o++)
+                dst.set(x, y, blend(pixels1[o], pixels2[o], weight));
+        }
+    }
+
+    /*****************************************************
+     Solve the affine map that takes triangle A = (ax0,ay0) (ax1,ay1)
+     (ax2,ay2) onto triangle B = (bx0,by0) (bx1,by1) (bx2,by2):
+
+         X = m00*x + m01*y + m02
+         Y = m10*x + m11*y + m12
+
+     With the edge vectors u1 = a1-a0, u2 = a2-a0, v1 = b1-b0, v2 = b2-b0
+     the linear part is [v1 v2] * [u1 u2]^-1, written out in closed form,
+     and the translation follows from a0 -> b0.
+
+     The six coefficients are stored in m[off..off+5] in the order m00
+     m01 m02 m10 m11 m12. If A has collapsed to a line or a point there
+     is no such map; false is returned and m is left untouched. B may be
+     degenerate.
+    ********************************************************/
+    public static boolean triangleAffine(
+        double ax0, double ay0, double ax1, double ay1, double ax2, double ay2,
+        double bx0, double by0, double bx1, double by1, double bx2, double by2,
+        double[] m, int off)
+    {
+        double u1x = ax1 - ax0, u1y = ay1 - ay0;
+        double u2x = ax2 - ax0, u2y = ay2 - ay0;
+        double v1x = bx1 - bx0, v1y = by1 - by0;
+        double v2x = bx2 - bx0, v2y = by2 - by0;
+
+        // Twice the signed area of A, compared against the edge lengths so
+        // the test does not depend on the triangle's scale
+        double det = u1x * u2y - u2x * u1y;
+        double scale = (u1x * u1x + u1y * u1y) + (u2x * u2x + u2y * u2y);
+        if (!(Math.abs(det) > DEGENERATE_EPSILON * scale))
+            return false;
+
+        double inv = 1.0 / det;
+        double m00 = (v1x * u2y - v2x * u1y) * inv;
+        double m01 = (v2x * u1x - v1x * u2x) * inv;
+        double m10 = (v1y * u2y - v2y * u1y) * inv;
+        double m11 = (v2y * u1x - v1y * u2x) * inv;
+
+        m[off] = m00;
+        m[off + 1] = m01;
+        m[off + 2] = bx0 - m00 * ax0 - m01 * ay0;
+        m[off + 3] = m10;
+        m[off + 4] = m11;
+        m[off + 5] = by0 - m10 * ax0 - m11 * ay0;
+        return true;
+    }
+
+    // Invert the affine in m[off..off+5] into out[outOff..outOff+5].
+    // Returns false, leaving out untouched, if the map is singular.
+    public static boolean invertAffine(double[] m, int off, double[] out, int outOff)
+    {
+        double m00 = m[off], m01 = m[off + 1], m02 = m[off + 2];
+        double m10 = m[off + 3], m11 = m[off + 4], m12 = m[off + 5];
+        double det = m00 * m11 - m01 * m10;
+        double scale = m00 * m00 + m01 * m01 + m10 * m10 + m11 * m11;
+        if (!(Math.abs(det) > DEGENERATE_EPSILON * scale))
+            return false;
+
+        double inv = 1.0 / det;
+        out[outOff] = m11 * inv;
+        out[outOff + 1] = -m01 * inv;
+        out[outOff + 2] = (m01 * m12 - m11 * m02) * inv;
+        out[outOff + 3] = -m10 * inv;
+        out[outOff + 4] = m00 * inv;
+        out[outOff + 5] = (m10 * m02 - m00 * m12) * inv;
+        return true;
+    }
+
+    /*****************************************************
+     Scanline rasterizer for the destination triangle (x0,y0) (x1,y1)
+     (x2,y2). Each covered pixel center is mapped into the source with the
+     inverse affine (m00 m01 m02 / m10 m11 m12) and sampled directly out of
+     the source raster. Only rows minRow..maxRow of dest are visited.
+
+     If src2 is not null the pixel center is also mapped into src2 with
+     (n00 n01 n02 / n10 n11 n12) and the two samples are blended, weight
+     256ths of the way towards src2.
+
+     Vertices are snapped to 1/SUBPIXEL_ONE of a pixel and the three edge
+     functions are evaluated exactly in long arithmetic. A pixel center
+     lying exactly on an edge belongs to the triangle only if that edge is
+     a top or left edge, which is what keeps the mesh watertight.
+
+     Coordinates are in whole images. A buffer holding only a region of
+     one (see PixelBuffer.originX) is written or sampled at the region's
+     offset, after the positions have been worked out, so rendering a
+     frame region by region gives exactly the pixels of the whole frame.
+    ********************************************************/
+    private static void rasterize(
+        PixelBuffer src, PixelBuffer src2, PixelBuffer dest,
+        double x0, double y0, double x1, double y1, double x2, double y2,
+        double m00, double m01, double m02,
+        double m10, double m11, double m12,
+        double n00, double n01, double n02,
+        double n10, double n11, double n12,
+        int weight, int mode, int minRow, int maxRow)
+    {
+        long X0 = Math.round(x0 * SUBPIXEL_ONE), Y0 = Math.round(y0 * SUBPIXEL_ONE);
+        long X1 = Math.round(x1 * SUBPIXEL_ONE), Y1 = Math.round(y1 * SUBPIXEL_ONE);
+        long X2 = Math.round(x2 * SUBPIXEL_ONE), Y2 = Math.round(y2 * SUBPIXEL_ONE);
+
+        // Orient the triangle so that the inside is the positive side of
+        // every edge; drop triangles that have collapsed to a line or point
+        long area = (X1 - X0) * (Y2 - Y0) - (Y1 - Y0) * (X2 - X0);
+        if (area == 0)
+            return;
+        if (area < 0) {
+            long t = X1; X1 = X2; X2 = t;
+            t = Y1; Y1 = Y2; Y2 = t;
+        }
+
+        long minY = Math.min(Y0, Math.min(Y1, Y2));
+        long maxY = Math.max(Y0, Math.max(Y1, Y2));
+        int top = dest.originY, left = dest.originX;
+        int rowStart = (int)Math.max(Math.max(top, minRow), Math.floorDiv(minY, SUBPIXEL_ONE));
+        int rowEnd = (int)Math.min(Math.min(top + dest.height - 1, maxRow), Math.floorDiv(maxY, SUBPIXEL_ONE));
+
+        long sdx = step(m00), sdy = step(m10), tdx = step(n00), tdy = step(n10);
+        long sox = (long)src.originX << STEP_BITS, soy = (long)src.originY << STEP_BITS;
+        for (int py = rowStart; py <= rowEnd; py++) {
+            long cy = ((long)py << SUBPIXEL_BITS) + SUBPIXEL_HALF;
+
+            // Intersect this row with the three edge half-planes
+            long lo = left, hi = left + dest.width - 1;
+            lo = Math.max(lo, edgeLow(X0, Y0, X1, Y1, cy));
+            hi = Math.min(hi, edgeHigh(X0, Y0, X1, Y1, cy));
+            lo = Math.max(lo, edgeLow(X1, Y1, X2, Y2, cy));
+            hi = Math.min(hi, edgeHigh(X1, Y1, X2, Y2, cy));
+            lo = Math.max(lo, edgeLow(X2, Y2, X0, Y0, cy));
+            hi = Math.min(hi, edgeHigh(X2, Y2, X0, Y0, cy));
+            if (lo > hi)
+                continue;
+
+            // Source positions of the first pixel center in the run
+            double yc = py + 0.5;
+            long sx = step(m00 * (lo + 0.5) + m01 * yc + m02) - sox;
+            long sy = step(m10 * (lo + 0.5) + m11 * yc + m12) - soy;
+            if (src2 == null) {
+                warpRow(src, dest, py - top, (int)lo - left, (int)hi - left, sx, sy, sdx, sdy, mode);
+                continue;
             }
-            int temp = l[j];
-            l[j] = l[k];
-            l[k] = temp;
-            for (i = k + 1; i < n; ++i) {
-                xmult = a[l[i]][k] / a[l[k]][k];
-                a[l[i]][k] = xmult;
-                for (j = k + 1; j < n; ++j) {
-                    a[l[i]][j] = a[l[i]][j] - xmult * a[l[k]][j];
+
+            long tx = step(n00 * (lo + 0.5) + n01 * yc + n02) - ((long)src2.originX << STEP_BITS);
+            long ty = step(n10 * (lo + 0.5) + n11 * yc + n12) - ((long)src2.originY << STEP_BITS);
+            blendRow(src, src2, dest, py - top, (int)lo - left, (int)hi - left,
+                sx, sy, sdx, sdy, tx, ty, tdx, tdy, weight, mode);
+        }
+    }
+
+    private static int samplingMode(Object INTERPOLATION)
+    {
+        if (INTERPOLATION == RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR)
+            return NEAREST;
+        if (INTERPOLATION == RenderingHints.VALUE_INTERPOLATION_BICUBIC)
+            return BICUBIC;
+        return BILINEAR;
+    }
+
+    // v in 32.32 fixed point
+    private static long step(double v)
+    {
+        return Math.round(v * STEP_ONE);
+    }
+
+    // Whole pixel containing fixed-point position v
+    private static int pixel(long v)
+    {
+        return (int)(v >> STEP_BITS);
+    }
+
+    // Fixed-point position v in 1/256 pixel relative to pixel centers, the
+    // form PixelBuffer.sampleBilinear and the run kernels take
+    private static int bilinear(long v)
+    {
+        return (int)((v - STEP_HALF) >> (STEP_BITS - 8));
+    }
+
+    /*****************************************************
+     Pixels lo..hi of row py of dest, sampled from src starting at
+     (sx, sy) and stepping by (dx, dy), all in 32.32 fixed point. The
+     sampling mode is chosen once per row, so each pixel loop is
+     straight-line code: integer adds and shifts to find the source
+     pixel, then the loads and the sample arithmetic.
+    ********************************************************/
+    private static void warpRow(
+        PixelBuffer src, PixelBuffer dest, int py, int lo, int hi,
+        long sx, long sy, long dx, long dy, int mode)
+    {
+        switch (mode) {
+            case NEAREST:
+                for (int px = lo; px <= hi; px++, sx += dx, sy += dy)
+                    dest.set(px, py, src.getClamped(pixel(sx), pixel(sy)));
+                break;
+            case BICUBIC:
+                for (int px = lo; px <= hi; px++, sx += dx, sy += dy)
+                    dest.set(px, py, src.sampleBicubic(sx * STEP_UNIT, sy * STEP_UNIT));
+                break;
+            default:
+                if (src.getInts() != null && dest.getInts() != null) {
+                    int[][] scratch = rowScratch(hi - lo + 1);
+                    int n = positions(scratch, 0, lo, hi, sx, sy, dx, dy);
+                    KERNELS.bilinear(src.getInts(), src.getStride(), src.width, src.height,
+                        src.isOpaque(), src.getLut(), scratch[0], scratch[1], 0,
+                        dest.getInts(), py * dest.getStride() + lo, n);
+                    break;
                 }
-            }
+                for (int px = lo; px <= hi; px++, sx += dx, sy += dy)
+                    dest.set(px, py, src.sampleBilinear(bilinear(sx), bilinear(sy)));
         }
     }
 
-    private static void solve(
-        int n, double[][] a, int[] l, double[] b, double[] x)
+    // Same as warpRow, blending samples of src and src2 with weight/256 on src2
+    private static void blendRow(
+        PixelBuffer src, PixelBuffer src2, PixelBuffer dest, int py, int lo, int hi,
+        long sx, long sy, long dx, long dy,
+        long tx, long ty, long ex, long ey, int weight, int mode)
     {
-        /*********************************************************
-           a and l have previously been passed to Gauss() b is the product of
-           a and x. x is the 1x3 matrix of coefficients to solve for
-        *************************************************************/
-        int i, k;
-        double sum;
-        for (k = 0; k < (n - 1); ++k) {
-            for (i = k + 1; i < n; ++i) {
-                b[l[i]] -= a[l[i]][k] * b[l[k]];
-            }
+        switch (mode) {
+            case NEAREST:
+                for (int px = lo; px <= hi; px++, sx += dx, sy += dy, tx += ex, ty += ey)
+                    dest.set(px, py, blend(src.getClamped(pixel(sx), pixel(sy)),
+                        src2.getClamped(pixel(tx), pixel(ty)), weight));
+                break;
+            case BICUBIC:
+                for (int px = lo; px <= hi; px++, sx += dx, sy += dy, tx += ex, ty += ey)
+                    dest.set(px, py, blend(src.sampleBicubic(sx * STEP_UNIT, sy * STEP_UNIT),
+                        src2.sampleBicubic(tx * STEP_UNIT, ty * STEP_UNIT), weight));
+                break;
+            default:
+                if (src.getInts() != null && src2.getInts() != null && dest.getInts() != null) {
+                    // Sample both runs into scratch rows, then blend them into dest
+                    int n = hi - lo + 1;
+                    int[][] scratch = rowScratch(n);
+                    positions(scratch, 0, lo, hi, sx, sy, dx, dy);
+                    positions(scratch, n, lo, hi, tx, ty, ex, ey);
+                    KERNELS.bilinear(src.getInts(), src.getStride(), src.width, src.height,
+                        src.isOpaque(), src.getLut(), scratch[0], scratch[1], 0, scratch[2], 0, n);
+                    KERNELS.bilinear(src2.getInts(), src2.getStride(), src2.width, src2.height,
+                        src2.isOpaque(), src2.getLut(), scratch[0], scratch[1], n, scratch[2], n, n);
+                    KERNELS.blend(scratch[2], 0, scratch[2], n, dest.getInts(), py * dest.getStride() + lo, n, weight);
+                    break;
+                }
+                for (int px = lo; px <= hi; px++, sx += dx, sy += dy, tx += ex, ty += ey)
+                    dest.set(px, py, blend(src.sampleBilinear(bilinear(sx), bilinear(sy)),
+                        src2.sampleBilinear(bilinear(tx), bilinear(ty)), weight));
         }
-        x[n - 1] = b[l[n - 1]] / a[l[n - 1]][n - 1];
+    }
 
-        for (i = n - 2; i >= 0; --i) {
-            sum = b[l[i]];
-            for (int j = i + 1; j < n; ++j) {
-                sum = sum - a[l[i]][j] * x[j];
-            }
-            x[i] = sum / a[l[i]][i];
+    // Scratch arrays for runs of up to n pixels from each of two sources
+    private static int[][] rowScratch(int n)
+    {
+        int[][] scratch = ROW_SCRATCH.get();
+        if (scratch[0].length < 2 * n) {
+            for (int k = 0; k < scratch.length; k++)
+                scratch[k] = new int[2 * n];
+        }
+        return scratch;
+    }
+
+    /*****************************************************
+     Bilinear positions (1/256 pixel, pixel centers on multiples of 256)
+     of pixels lo..hi, stepping from (sx, sy) by (dx, dy) in 32.32 fixed
+     point, written to scratch[0] and scratch[1] from offset off. Returns
+     the number of positions.
+    ********************************************************/
+    private static int positions(
+        int[][] scratch, int off, int lo, int hi,
+        long sx, long sy, long dx, long dy)
+    {
+        int[] fx = scratch[0], fy = scratch[1];
+        for (int px = lo; px <= hi; px++, off++, sx += dx, sy += dy) {
+            fx[off] = bilinear(sx);
+            fy[off] = bilinear(sy);
         }
+        return hi - lo + 1;
+    }
+
+    // a + (b - a) * weight/256 for each channel of two ARGB values, two
+    // channels at a time
+    private static int blend(int a, int b, int weight)
+    {
+        int inv = 256 - weight;
+        int rb = (((a & 0xff00ff) * inv + (b & 0xff00ff) * weight + 0x800080) >>> 8) & 0xff00ff;
+        int ag = (((a >>> 8) & 0xff00ff) * inv + ((b >>> 8) & 0xff00ff) * weight + 0x800080) & 0xff00ff00;
+        return ag | rb;
+    }
+
+    /*****************************************************
+     The edge from (Xa,Ya) to (Xb,Yb) evaluated at pixel column px of the
+     row whose center is cy is E(px) = c + a*px with
+         a = -(Yb-Ya) * SUBPIXEL_ONE
+         c = (Xb-Xa)*(cy-Ya) - (Yb-Ya)*(SUBPIXEL_HALF-Xa)
+     and the pixel is inside when E(px) >= bias, where bias is 0 for top
+     and left edges and 1 otherwise. edgeLow/edgeHigh return the column
+     bound this implies, or an unbounded value when the edge does not
+     bound the row in that direction.
+    ********************************************************/
+    private static long edgeLow(long Xa, long Ya, long Xb, long Yb, long cy)
+    {
+        long dx = Xb - Xa, dy = Yb - Ya;
+        long a = -dy * SUBPIXEL_ONE;
+        long c = dx * (cy - Ya) - dy * (SUBPIXEL_HALF - Xa);
+        long bias = isTopLeft(dx, dy) ? 0 : 1;
+        if (a > 0)
+            return -Math.floorDiv(c - bias, a);
+        if (a == 0 && c < bias)
+            return Long.MAX_VALUE;
+        return Long.MIN_VALUE;
+    }
+
+    private static long edgeHigh(long Xa, long Ya, long Xb, long Yb, long cy)
+    {
+        long dx = Xb - Xa, dy = Yb - Ya;
+        long a = -dy * SUBPIXEL_ONE;
+        long c = dx * (cy - Ya) - dy * (SUBPIXEL_HALF - Xa);
+        long bias = isTopLeft(dx, dy) ? 0 : 1;
+        if (a < 0)
+            return Math.floorDiv(c - bias, -a);
+        if (a == 0 && c < bias)
+            return Long.MIN_VALUE;
+        return Long.MAX_VALUE;
+    }
+
+    // With the inside on the positive side (y pointing down) a top edge is
+    // horizontal and runs to the right, a left edge runs upwards
+    private static boolean isTopLeft(long dx, long dy)
+    {
+        return (dy == 0 && dx > 0) || dy < 0;
     }
 }
@@ -1,13 +1,13 @@
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.RescaleOp;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.nio.Buffer;
 
 public class MorphWindow extends JFrame implements MouseListener, MouseMotionListener{
@@ -26,16 +26,31 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
     public static final int MIN_DIM = 5;
     public static final int GRID_DIM = 10;
     public static final int MAX_DIM = 20;
+    public static final int MIN_THREADS = 1;
+    public static final int MAX_THREADS = Math.max(MorphRenderer.DEFAULT_THREADS, 8);
 
     private MyImageObj imageInitial, imageFinal;
     private PreviewWindow preview;
     private JSlider initialIntensitySlider, finalIntensitySlider;   // set brightness//intensity of images
+    private IntensityAdjuster initialAdjuster, finalAdjuster;       // apply slider intensity off the EDT
     private JSlider gridSlider;     // choose dimension of control nodes
     private JSlider secondsSlider;  // choose number of seconds for animation
     private JSlider fpsSlider;      // choose number of frames per second
-    private JLabel initialIntensityLabel, finalIntensityLabel, gridLabel, secondsLabel, fpsLabel;
+    private JSlider threadsSlider;  // choose number of frames rendered in parallel
+    private JLabel initialIntensityLabel, finalIntensityLabel, gridLabel, secondsLabel, fpsLabel, threadsLabel;
     private JButton previewButton, morphButton;
+    private JProgressBar progressBar;   // frames rendered so far
+    private JLabel progressLabel;       // render speed and time remaining
+    private MorphRenderer renderer;     // renderer of the morph in progress
+    private SwingWorker<Void, Integer> morphWorker; // background render job, null when idle
     private int framesPerSecond, seconds;
+    private int renderThreads;      // size of the render worker pool
+    private boolean tileParallel;   // also warp row bands of each frame concurrently
+    private boolean draftRender;    // render from the pyramid level nearest the display size
+    private String outputFormat = FrameWriter.JPEG;     // file format of rendered frames
+    private float jpegQuality = FrameWriter.DEFAULT_QUALITY;
+    private Object renderQuality = RenderingHints.VALUE_INTERPOLATION_BILINEAR;   // source sampling
+    private FrameStore frameStore;  // store for raw output, kept open for the preview
     private int gridSize;           // number of movable points in a row of ctrl pts
     private int[] selectedPoint;    // currently selected point
     private boolean imageInitialLoaded = false;
@@ -49,35 +64,16 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
         framesPerSecond = DEFAULT_FPS;
         seconds = DEFAULT_SECS;
         gridSize = GRID_DIM;
+        renderThreads = MorphRenderer.DEFAULT_THREADS;
 
         // Instantiate intensity slider for initial image with constant parameters, define behavior
         initialIntensitySlider = new JSlider(MIN_INTENSITY, MAX_INTENSITY, DEFAULT_INTENSITY);
         initialIntensitySlider.addChangeListener(new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
-                // If image has been loaded
-                if (imageInitialLoaded) {
-                    // Get image without any intensity adjustments
-                    BufferedImage I = imageInitial.getOriginalImg();
-
-                    // Create copy of image
-                    BufferedImage F;
-                    Graphics2D g;
-                    F = new BufferedImage(I.getWidth(), I.getHeight(), I.getType());
-                    g = F.createGraphics();
-                    g.drawImage(I, 0, 0, null);
-                    g.dispose();
-
-                    // Define scale depending on current value of slider
-                    float f = 1.0f + ((float)initialIntensitySlider.getValue() / 100);
-
-                    // Change intensity with scale f
-                    RescaleOp r = new RescaleOp(f, 0, null);
-                    r.filter(I, F);
-
-                    // Set adjusted image
-                    imageInitial.setFilteredImg(F);
-                }
+                // If image has been loaded, filter it off the EDT
+                if (imageInitialLoaded)
+                    initialAdjuster.request(intensity(initialIntensitySlider));
             }
         });
 
@@ -86,28 +82,8 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
         finalIntensitySlider.addChangeListener(new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
-                if (imageFinalLoaded) {
-                    // Get image without any intensity adjustments
-                    BufferedImage I = imageFinal.getOriginalImg();
-
-                    // Create copy of image
-                    BufferedImage F;
-                    Graphics2D g;
-                    F = new BufferedImage(I.getWidth(), I.getHeight(), I.getType());
-                    g = F.createGraphics();
-                    g.drawImage(I, 0, 0, null);
-                    g.dispose();
-
-                    // Define scale depending on current value of slider
-                    float f = 1.0f + ((float)finalIntensitySlider.getValue() / 100);
-
-                    // Change intensity with scale f
-                    RescaleOp r = new RescaleOp(f, 0, null);
-                    r.filter(I, F);
-
-                    // Set adjusted image
-                    imageFinal.setFilteredImg(F);
-                }
+                if (imageFinalLoaded)
+                    finalAdjuster.request(intensity(finalIntensitySlider));
             }
         });
 
@@ -172,6 +148,22 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
             }
         });
 
+        // Instantiate threadsSlider with constant parameters, define behavior
+        threadsSlider = new JSlider(MIN_THREADS, MAX_THREADS, renderThreads);
+        threadsSlider.setMajorTickSpacing(Math.max(1, MAX_THREADS / 4));
+        threadsSlider.setMinorTickSpacing(1);
+        threadsSlider.setPaintTicks(true);
+        threadsSlider.setPaintLabels(true);
+        threadsSlider.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                // Update thread count
+                renderThreads = threadsSlider.getValue();
+                // Update label
+                threadsLabel.setText("Render threads: " + renderThreads);
+            }
+        });
+
         // Instantiate intensity labels
         initialIntensityLabel = new JLabel("Intensity");
         finalIntensityLabel = new JLabel("Intensity");
@@ -180,6 +172,7 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
         gridLabel = new JLabel("Grid resolution: ");
         secondsLabel = new JLabel("Seconds: " + seconds);
         fpsLabel = new JLabel("Frames per second: " + framesPerSecond);
+        threadsLabel = new JLabel("Render threads: " + renderThreads);
 
         // Instantiate and define behavior of previewButton
         previewButton = new JButton("Preview");
@@ -204,43 +197,30 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
         morphButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                // If both images are loaded
-                if (imageInitialLoaded && imageFinalLoaded) {
-                    // Update label
-                    morphButton.setText("Morphing...");
-                    repaint();
-
-                    // Disable button
+                // While a morph is rendering this button cancels it
+                if (morphWorker != null) {
+                    renderer.cancel();
+                    morphButton.setText("Cancelling...");
                     morphButton.setEnabled(false);
-
-                    // Compute and render morph frames
-                    generateMorph();
-
-                    // Re-enable button
-                    morphButton.setEnabled(true);
-
-                    // Update label
-                    morphButton.setText("Morph");
-                    repaint();
-
-                    // Display morph
-                    // Close preview window if already open
-                    if (preview != null) {
-                        preview.dispatchEvent(new WindowEvent(preview, WindowEvent.WINDOW_CLOSING));
-                    }
-
-                    // Instantiate new preview window with isMorph true
-                    preview = new PreviewWindow(imageInitial, imageFinal, framesPerSecond, seconds, true);
-
-                    // Start animation timer
-                    preview.startTimer();
+                }
+                // If both images are loaded
+                else if (imageInitialLoaded && imageFinalLoaded) {
+                    startMorph();
                 }
             }
         });
 
+        // Instantiate progress components
+        progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+        progressLabel = new JLabel(" ");
+
         // Instantiate MyImageObjs
         imageInitial = new MyImageObj(IMG_WIDTH, IMG_HEIGHT, gridSize);
         imageFinal = new MyImageObj(IMG_WIDTH, IMG_HEIGHT, gridSize);
+        initialAdjuster = new IntensityAdjuster(imageInitial, this::updatePreview);
+        finalAdjuster = new IntensityAdjuster(imageFinal, this::updatePreview);
 
         // Use this frame to define mouse behavior on labels
         imageInitial.addMouseListener(this);
@@ -255,7 +235,17 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
         JMenu fileMenu = new JMenu ("File");
         JMenuItem fileInitialOpen = new JMenuItem ("Open First Image");
         JMenuItem fileFinalOpen = new JMenuItem ("Open Second Image");
+        JMenuItem fileInitialSave = new JMenuItem ("Save First Control Points");
+        JMenuItem fileFinalSave = new JMenuItem ("Save Second Control Points");
+        JMenuItem fileInitialLoad = new JMenuItem ("Load First Control Points");
+        JMenuItem fileFinalLoad = new JMenuItem ("Load Second Control Points");
         JMenuItem fileExit = new JMenuItem ("Exit");
+        JMenu renderMenu = new JMenu ("Render");
+        final JCheckBoxMenuItem renderTiles = new JCheckBoxMenuItem ("Tile-parallel frames");
+        final JCheckBoxMenuItem renderDraft = new JCheckBoxMenuItem ("Draft (preview resolution)");
+        JMenu formatMenu = new JMenu ("Output Format");
+        JMenu qualityMenu = new JMenu ("JPEG Quality");
+        JMenu samplingMenu = new JMenu ("Render Quality");
 
         // Define file opening behavior
         fileInitialOpen.addActionListener(
@@ -265,9 +255,12 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
                         if (returnVal == JFileChooser.APPROVE_OPTION) {
                             File file = fc.getSelectedFile();
                             try {
-                                imageInitial.setImage(ImageIO.read(file));
+                                imageInitial.setImage(ingest(file, imageFinal, imageFinalLoaded));
                             } catch (IOException e1){};
+                            updatePreview();
                             imageInitialLoaded = true;
+                            // Show the new image at the current intensity, as it will render
+                            initialAdjuster.request(intensity(initialIntensitySlider));
                         }
                         //MorphWindow.this.pack();
                     }
@@ -280,14 +273,45 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
                         if (returnVal == JFileChooser.APPROVE_OPTION) {
                             File file = fc.getSelectedFile();
                             try {
-                                imageFinal.setImage(ImageIO.read(file));
+                                imageFinal.setImage(ingest(file, imageInitial, imageInitialLoaded));
                             } catch (IOException e1){};
+                            updatePreview();
                             imageFinalLoaded = true;
+                            finalAdjuster.request(intensity(finalIntensitySlider));
                         }
                         //MorphWindow.this.pack();
                     }
                 }
         );
+        // Define control point saving and loading behavior
+        fileInitialSave.addActionListener(
+                new ActionListener () {
+                    public void actionPerformed (ActionEvent e) {
+                        saveControlPoints(fc, imageInitial);
+                    }
+                }
+        );
+        fileFinalSave.addActionListener(
+                new ActionListener () {
+                    public void actionPerformed (ActionEvent e) {
+                        saveControlPoints(fc, imageFinal);
+                    }
+                }
+        );
+        fileInitialLoad.addActionListener(
+                new ActionListener () {
+                    public void actionPerformed (ActionEvent e) {
+                        loadControlPoints(fc, imageInitial);
+                    }
+                }
+        );
+        fileFinalLoad.addActionListener(
+                new ActionListener () {
+                    public void actionPerformed (ActionEvent e) {
+                        loadControlPoints(fc, imageFinal);
+                    }
+                }
+        );
         fileExit.addActionListener(
                 new ActionListener() {
                     public void actionPerformed (ActionEvent e) {
@@ -296,11 +320,92 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
                 }
         );
 
+        // Warping each frame in concurrent row bands helps when there are few, large frames
+        renderTiles.addActionListener(
+                new ActionListener() {
+                    public void actionPerformed (ActionEvent e) {
+                        tileParallel = renderTiles.isSelected();
+                    }
+                }
+        );
+
+        // Drafts are rendered at about the size they are previewed at, however large the sources
+        renderDraft.addActionListener(
+                new ActionListener() {
+                    public void actionPerformed (ActionEvent e) {
+                        draftRender = renderDraft.isSelected();
+                    }
+                }
+        );
+
+        // Output format: numbered JPEG or PNG files, a single memory-mapped raw frame
+        // store, or one animated GIF or Motion-JPEG AVI file
+        ButtonGroup formatGroup = new ButtonGroup();
+        for (final String format : MorphExporter.FORMATS) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem (format.toUpperCase(), format.equals(outputFormat));
+            item.addActionListener(
+                    new ActionListener() {
+                        public void actionPerformed (ActionEvent e) {
+                            outputFormat = format;
+                        }
+                    }
+            );
+            formatGroup.add(item);
+            formatMenu.add(item);
+        }
+
+        // JPEG compression quality in percent
+        ButtonGroup qualityGroup = new ButtonGroup();
+        for (final int percent : new int[] {50, 75, 90, 95, 100}) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem (percent + "%", percent == Math.round(jpegQuality * 100));
+            item.addActionListener(
+                    new ActionListener() {
+                        public void actionPerformed (ActionEvent e) {
+                            jpegQuality = percent / 100f;
+                        }
+                    }
+            );
+            qualityGroup.add(item);
+            qualityMenu.add(item);
+        }
+
+        // Source sampling: nearest neighbour is several times faster for review drafts,
+        // bicubic is the slowest and sharpest for final renders
+        ButtonGroup samplingGroup = new ButtonGroup();
+        String[] samplingNames = {"Draft (nearest)", "Normal (bilinear)", "Final (bicubic)"};
+        Object[] samplingHints = {RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR, RenderingHints.VALUE_INTERPOLATION_BICUBIC};
+        for (int i = 0; i < samplingNames.length; i++) {
+            final Object hint = samplingHints[i];
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem (samplingNames[i], hint == renderQuality);
+            item.addActionListener(
+                    new ActionListener() {
+                        public void actionPerformed (ActionEvent e) {
+                            renderQuality = hint;
+                        }
+                    }
+            );
+            samplingGroup.add(item);
+            samplingMenu.add(item);
+        }
+
         // Put menu components together
         fileMenu.add(fileInitialOpen);
         fileMenu.add(fileFinalOpen);
+        fileMenu.addSeparator();
+        fileMenu.add(fileInitialSave);
+        fileMenu.add(fileFinalSave);
+        fileMenu.add(fileInitialLoad);
+        fileMenu.add(fileFinalLoad);
+        fileMenu.addSeparator();
         fileMenu.add(fileExit);
         bar.add(fileMenu);
+        renderMenu.add(renderTiles);
+        renderMenu.add(renderDraft);
+        renderMenu.add(formatMenu);
+        renderMenu.add(qualityMenu);
+        renderMenu.add(samplingMenu);
+        bar.add(renderMenu);
 
         Container c = getContentPane();
 
@@ -319,7 +424,7 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
 
         // Add control components to control panel
         JPanel controlPanel = new JPanel();
-        controlPanel.setLayout(new GridLayout(5, 2));
+        controlPanel.setLayout(new GridLayout(7, 2));
         controlPanel.add(initialIntensityPanel);
         controlPanel.add(finalIntensityPanel);
         controlPanel.add(gridLabel);
@@ -328,172 +433,212 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
         controlPanel.add(secondsSlider);
         controlPanel.add(fpsLabel);
         controlPanel.add(fpsSlider);
+        controlPanel.add(threadsLabel);
+        controlPanel.add(threadsSlider);
         controlPanel.add(previewButton);
         controlPanel.add(morphButton);
+        controlPanel.add(progressBar);
+        controlPanel.add(progressLabel);
         c.add(controlPanel, BorderLayout.SOUTH);
 
         pack();
         setVisible(true);
     }
 
-    public void generateMorph() {
-
-        // I, F are input images
-        // imageInit and imageFin are copies of these
-        // imageInitTween is a generated warped frame of imageInit
-        // imageFinTween is a generated warped frame of imageFin
-        BufferedImage I, F, imageInit, imageFin, imageInitTween, imageFinTween;
-
-        // Copy I, F into imageInit, imageFin
-        Graphics2D g1, g2;
-        I = imageInitial.getImage();
-        F = imageFinal.getImage();
-        imageInit = new BufferedImage(I.getWidth(), I.getHeight(), I.getType());
-        imageInitTween = new BufferedImage(I.getWidth(), I.getHeight(), I.getType());
-        imageFin = new BufferedImage(F.getWidth(), F.getHeight(), F.getType());
-        imageFinTween = new BufferedImage(F.getWidth(), F.getHeight(), F.getType());
-        g1 = imageInit.createGraphics();
-        g2 = imageFin.createGraphics();
-        g1.drawImage(I, 0, 0, null);
-        g2.drawImage(F, 0, 0, null);
-        g1.dispose();
-        g2.dispose();
-
-        // Calculate factors for scaling control point grid to image sizes
-        double initialWidthFactor, initialHeightFactor, finalWidthFactor, finalHeightFactor;
-        initialWidthFactor = (double)I.getWidth()/IMG_WIDTH;
-        initialHeightFactor = (double)I.getHeight()/IMG_HEIGHT;
-        finalWidthFactor = (double)F.getWidth()/IMG_WIDTH;
-        finalHeightFactor = (double)F.getHeight()/IMG_HEIGHT;
-
-        // Get control point positions from images
-        int[][][] initPoints = imageInitial.getControlPoints();
-        int[][][] finalPoints = imageFinal.getControlPoints();
-
-        // Define arrays of triangles for initial and final positions for both images
-        Triangle[][][] initTriangles1 = new Triangle[gridSize+1][gridSize+1][2];
-        Triangle[][][] finalTriangles1 = new Triangle[gridSize+1][gridSize+1][2];
-        Triangle[][][] initTriangles2 = new Triangle[gridSize+1][gridSize+1][2];
-        Triangle[][][] finalTriangles2 = new Triangle[gridSize+1][gridSize+1][2];
-
-        // Loop over upper left corners of grid triangles
-        for (int i = 0; i < gridSize + 1; i++) {
-            for (int j = 0; j < gridSize + 1; j++) {
-                // Define triangles by scaling control points to image size
-
-                initTriangles1[i][j][0] = new Triangle(
-                        (int)(initPoints[i][j][0] * initialWidthFactor),
-                        (int)(initPoints[i][j][1] * initialHeightFactor),
-                        (int)(initPoints[i + 1][j][0] * initialWidthFactor),
-                        (int)(initPoints[i + 1][j][1] * initialHeightFactor),
-                        (int)(initPoints[i + 1][j + 1][0] * initialWidthFactor),
-                        (int)(initPoints[i + 1][j + 1][1] * initialHeightFactor));
-                initTriangles1[i][j][1] = new Triangle(
-                        (int)(initPoints[i][j][0] * initialWidthFactor),
-                        (int)(initPoints[i][j][1] * initialHeightFactor),
-                        (int)(initPoints[i][j + 1][0] * initialWidthFactor),
-                        (int)(initPoints[i][j + 1][1] * initialHeightFactor),
-                        (int)(initPoints[i + 1][j + 1][0] * initialWidthFactor),
-                        (int)(initPoints[i + 1][j + 1][1] * initialHeightFactor));
-                finalTriangles1[i][j][0] = new Triangle(
-                        (int)(finalPoints[i][j][0] * initialWidthFactor),
-                        (int)(finalPoints[i][j][1] * initialHeightFactor),
-                        (int)(finalPoints[i + 1][j][0] * initialWidthFactor),
-                        (int)(finalPoints[i + 1][j][1] * initialHeightFactor),
-                        (int)(finalPoints[i + 1][j + 1][0] * initialWidthFactor),
-                        (int)(finalPoints[i + 1][j + 1][1] * initialHeightFactor));
-                finalTriangles1[i][j][1] = new Triangle(
-                        (int)(finalPoints[i][j][0] * initialWidthFactor),
-                        (int)(finalPoints[i][j][1] * initialHeightFactor),
-                        (int)(finalPoints[i][j + 1][0] * initialWidthFactor),
-                        (int)(finalPoints[i][j + 1][1] * initialHeightFactor),
-                        (int)(finalPoints[i + 1][j + 1][0] * initialWidthFactor),
-                        (int)(finalPoints[i + 1][j + 1][1] * initialHeightFactor));
-
-                initTriangles2[i][j][0] = new Triangle(
-                        (int)(initPoints[i][j][0] * finalWidthFactor),
-                        (int)(initPoints[i][j][1] * finalHeightFactor),
-                        (int)(initPoints[i + 1][j][0] * finalWidthFactor),
-                        (int)(initPoints[i + 1][j][1] * finalHeightFactor),
-                        (int)(initPoints[i + 1][j + 1][0] * finalWidthFactor),
-                        (int)(initPoints[i + 1][j + 1][1] * finalHeightFactor));
-                initTriangles2[i][j][1] = new Triangle(
-                        (int)(initPoints[i][j][0] * finalWidthFactor),
-                        (int)(initPoints[i][j][1] * finalHeightFactor),
-                        (int)(initPoints[i][j + 1][0] * finalWidthFactor),
-                        (int)(initPoints[i][j + 1][1] * finalHeightFactor),
-                        (int)(initPoints[i + 1][j + 1][0] * finalWidthFactor),
-                        (int)(initPoints[i + 1][j + 1][1] * finalHeightFactor));
-                finalTriangles2[i][j][0] = new Triangle(
-                        (int)(finalPoints[i][j][0] * finalWidthFactor),
-                        (int)(finalPoints[i][j][1] * finalHeightFactor),
-                        (int)(finalPoints[i + 1][j][0] * finalWidthFactor),
-                        (int)(finalPoints[i + 1][j][1] * finalHeightFactor),
-                        (int)(finalPoints[i + 1][j + 1][0] * finalWidthFactor),
-                        (int)(finalPoints[i + 1][j + 1][1] * finalHeightFactor));
-                finalTriangles2[i][j][1] = new Triangle(
-                        (int)(finalPoints[i][j][0] * finalWidthFactor),
-                        (int)(finalPoints[i][j][1] * finalHeightFactor),
-                        (int)(finalPoints[i][j + 1][0] * finalWidthFactor),
-                        (int)(finalPoints[i][j + 1][1] * finalHeightFactor),
-                        (int)(finalPoints[i + 1][j + 1][0] * finalWidthFactor),
-                        (int)(finalPoints[i + 1][j + 1][1] * finalHeightFactor));
-            }
+    // Write img's control points to a mesh file for the batch renderer
+    private void saveControlPoints(JFileChooser fc, MyImageObj img) {
+        if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+        try {
+            img.getControlPoints().write(fc.getSelectedFile(), IMG_WIDTH, IMG_HEIGHT);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Cannot save control points: " + e.getMessage(),
+                    "Morph", JOptionPane.ERROR_MESSAGE);
         }
+    }
 
-        // Loop over number of frames to be generated
-        for (int i = 0; i < seconds*framesPerSecond; i++) {
-            // Morph i-th frame of initial image
-            morphFrame(initTriangles1, finalTriangles1, i, imageInit, imageInitTween);
+    // Replace img's control points with a mesh file. A mesh of another grid
+    // size changes the grid resolution, which resets the other image's grid.
+    private void loadControlPoints(JFileChooser fc, MyImageObj img) {
+        if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+        Mesh m;
+        try {
+            m = Mesh.read(fc.getSelectedFile(), IMG_WIDTH, IMG_HEIGHT);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Cannot load control points: " + e.getMessage(),
+                    "Morph", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        int g = m.getRows() - 2;
+        if (m.getRows() != m.getCols() || g < MIN_DIM || g > MAX_DIM) {
+            JOptionPane.showMessageDialog(this, "Control point grid must be square, " + MIN_DIM + " to " + MAX_DIM,
+                    "Morph", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (g != gridSize)
+            gridSlider.setValue(g);
+        img.setControlPoints(m);
+        updatePreview();
+    }
 
-            // Morph corresponding frame of final image
-            morphFrame(finalTriangles2, initTriangles2, seconds*framesPerSecond-i-1, imageFin, imageFinTween);
+    // Read an image as packed ints, at the size of the other image if that
+    // one is loaded, so both sides share one working resolution
+    private BufferedImage ingest(File file, MyImageObj other, boolean otherLoaded) throws IOException {
+        BufferedImage o = otherLoaded ? other.getOriginalImg() : null;
+        return o == null ? ImageIngest.read(file, 0, 0) : ImageIngest.read(file, o.getWidth(), o.getHeight());
+    }
 
-            // Composite frames together in place on imageInitTween
-            Graphics2D g = imageInitTween.createGraphics();
-            float p = (float) i / (seconds * framesPerSecond - 1);
-            g.setComposite(AlphaComposite.SrcOver.derive(p));
-            g.drawImage(imageFinTween, 0, 0, imageInitTween.getWidth(), imageInitTween.getHeight(), null);
-            g.dispose();
+    // Scale factor an intensity slider stands for
+    private static float intensity(JSlider slider) {
+        return 1.0f + ((float) slider.getValue() / 100);
+    }
 
-            // Write frame to JPEG
-            writeJPEG(imageInitTween, "renders/" + Integer.toString(i));
-        }
+    // Let an open preview re-render its scrub position from the current
+    // images and control points
+    private void updatePreview() {
+        if (preview != null)
+            preview.sourcesChanged();
     }
 
-    private void morphFrame(Triangle[][][] initTriangles, Triangle[][][] finalTriangles, int index, BufferedImage init, BufferedImage tween) {
-        // Loop over triangles
-        for (int i = 0; i < gridSize + 1; i++) {
-            for (int j = 0; j < gridSize + 1; j++) {
-                for (int k = 0; k < 2; k++) {
-                    // Define points for current triangle's current location
-                    double[] points, initPoints, finalPoints;
-                    points = new double[6];
-                    initPoints = initTriangles[i][j][k].getAllCoords();
-                    finalPoints = finalTriangles[i][j][k].getAllCoords();
-
-                    // Calculate current triangle position based on initial position, final position, and index of frame
-                    for (int s = 0; s < 3; s++) {
-                        points[2*s] = (finalPoints[2*s] - initPoints[2*s]) * index / (framesPerSecond * seconds) + initPoints[2*s];
-                        points[2*s+1] = (finalPoints[2*s+1] - initPoints[2*s+1]) * index / (framesPerSecond * seconds) + initPoints[2*s+1];
+    // Render the morph on a background thread. The preview opens right away
+    // and plays frames as they are written; the Morph button becomes Cancel.
+    private void startMorph() {
+        // Build renderer from the unadjusted images and control points; the
+        // slider intensities are applied by the renderer as it samples
+        BufferedImage first = imageInitial.getOriginalImg(), second = imageFinal.getOriginalImg();
+        if (draftRender) {
+            first = imageInitial.getOriginalPyramid().forSize(IMG_WIDTH, IMG_HEIGHT);
+            second = imageFinal.getOriginalPyramid().forSize(IMG_WIDTH, IMG_HEIGHT);
+        }
+        renderer = new MorphRenderer(first, second,
+                imageInitial.getControlPoints(), imageFinal.getControlPoints(),
+                seconds*framesPerSecond, IMG_WIDTH, IMG_HEIGHT);
+        renderer.setIntensity(intensity(initialIntensitySlider), intensity(finalIntensitySlider));
+        renderer.setThreads(renderThreads);
+        renderer.setTileParallel(tileParallel);
+        renderer.setInterpolation(renderQuality);
+        final MorphRenderer job = renderer;
+        final int total = job.getFrames();
+
+        // Close preview window if already open
+        if (preview != null) {
+            preview.dispatchEvent(new WindowEvent(preview, WindowEvent.WINDOW_CLOSING));
+        }
+
+        // Replace the previous raw frame store, if any
+        if (frameStore != null) {
+            try {
+                frameStore.close();
+            } catch (IOException e1) {}
+            frameStore = null;
+        }
+        if (outputFormat.equals(FrameStore.FORMAT)) {
+            try {
+                new File("renders").mkdirs();
+                frameStore = FrameStore.create(new File("renders", "frames" + FrameStore.EXTENSION),
+                        job.getWidth(), job.getHeight(), 4, total);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, "Cannot create frame store: " + e.getMessage(),
+                        "Morph", JOptionPane.ERROR_MESSAGE);
+                renderer = null;
+                return;
+            }
+        }
+
+        // Instantiate new preview window with isMorph true, playing frames as they arrive
+        preview = new PreviewWindow(imageInitial, imageFinal, framesPerSecond, seconds, true);
+        if (MorphExporter.hasFrameFiles(outputFormat))
+            preview.setFrameSuffix("." + outputFormat);
+        else if (frameStore == null)
+            preview.keepAllFrames();
+        preview.setFrameStore(frameStore);
+        preview.beginRendering();
+        preview.startTimer();
+        final PreviewWindow target = preview;
+
+        // Update button and progress display
+        morphButton.setText("Cancel");
+        progressBar.setMinimum(0);
+        progressBar.setMaximum(total);
+        progressBar.setValue(0);
+        progressBar.setString("0 / " + total + " frames");
+        progressLabel.setText("Morphing...");
+        final long start = System.nanoTime();
+
+        morphWorker = new SwingWorker<Void, Integer>() {
+            private int done = 0;
+
+            @Override
+            protected Void doInBackground() throws IOException {
+                generateMorph(job, new FrameSink() {
+                    @Override
+                    public void frameRendered(int index, BufferedImage frame) {
+                        // Hand frame straight to the preview
+                        target.cacheFrame(index, frame);
                     }
+                }, new FrameSink() {
+                    @Override
+                    public void frameRendered(int index, BufferedImage frame) {
+                        // Frame is on disk, let the EDT know
+                        publish(index);
+                    }
+                });
+                return null;
+            }
 
-                    // Define triangle from calculated points
-                    Triangle dest = new Triangle(points);
+            @Override
+            protected void process(java.util.List<Integer> indices) {
+                for (int index : indices)
+                    target.frameReady(index);
+                done += indices.size();
+
+                // Frames done, frames per second and estimated time remaining
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                double rate = done / Math.max(elapsed, 1e-3);
+                int eta = (int)Math.ceil((total - done) / rate);
+                progressBar.setValue(done);
+                progressBar.setString(done + " / " + total + " frames");
+                progressLabel.setText(String.format("%.1f frames/s, ETA %d:%02d", rate, eta / 60, eta % 60));
+            }
 
-                    // Warp triangle
-                    MorphTools.warpTriangle(init, tween, initTriangles[i][j][k], dest, null, null);
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    progressLabel.setText(job.isCancelled() ? "Cancelled" : "Done");
+                } catch (InterruptedException | CancellationException e) {
+                    progressLabel.setText("Cancelled");
+                } catch (ExecutionException e) {
+                    progressLabel.setText("Failed");
+                    JOptionPane.showMessageDialog(MorphWindow.this, "Morph failed: " + e.getCause(),
+                            "Morph", JOptionPane.ERROR_MESSAGE);
                 }
+                target.endRendering();
+
+                // Restore button
+                morphWorker = null;
+                renderer = null;
+                morphButton.setText("Morph");
+                morphButton.setEnabled(true);
             }
-        }
+        };
+        morphWorker.execute();
     }
 
-    // Write passed BufferedImage to dest.jpg
-    private void writeJPEG(BufferedImage src, String dest) {
-        File f = new File(dest + ".jpg");
+    // Render every frame of renderer to renders/ in the chosen output format.
+    // Each frame is passed to rendered as soon as it is rendered and to
+    // written once it is on disk. Blocks until done or cancelled, then
+    // prints the render's metrics.
+    public void generateMorph(MorphRenderer renderer, FrameSink rendered, FrameSink written) throws IOException {
+        MorphExporter exporter = new MorphExporter(new File("renders"), outputFormat, framesPerSecond);
+        exporter.setQuality(jpegQuality);
+        exporter.setFrameStore(frameStore);
         try {
-            ImageIO.write(src, "jpg", f);
-        } catch (IOException e1) {}
+            exporter.export(renderer, rendered, written);
+        } finally {
+            System.out.print(renderer.getMetrics().snapshot());
+        }
     }
 
     @Override
@@ -507,11 +652,12 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
         MyImageObj myImg = (MyImageObj) e.getSource();
 
         // If click was on control point
-        if (myImg.clickOnPoint(e.getPoint()) != null) {
+        int[] clicked = myImg.clickOnPoint(e.getPoint());
+        if (clicked != null) {
             // Raise dragging flag
             isDragging = true;
             // Set selectedPoint as point clicked on
-            selectedPoint = myImg.clickOnPoint(e.getPoint());
+            selectedPoint = clicked;
             // Set selectedPoint for both MyImageObjs to change color of points
             imageInitial.setSelectedPoint(selectedPoint[0], selectedPoint[1]);
             imageFinal.setSelectedPoint(selectedPoint[0], selectedPoint[1]);
@@ -521,6 +667,8 @@ public class MorphWindow extends JFrame implements MouseListener, MouseMotionLis
 
     @Override
     public void mouseReleased(MouseEvent e) {
+        if (isDragging)
+            updatePreview();
         isDragging = false;
     }
 
@@ -7,13 +7,23 @@ public class MyImageObj extends JLabel {
 
     private BufferedImage img;              // Image
     private BufferedImage filteredImg;
+    private ImagePyramid pyramid;           // levels of filteredImg, built on first use
+    private ImagePyramid originalPyramid;   // levels of img, built on first use
+    private BufferedImage background;       // filteredImg scaled to the display, built on first paint
     private int width, height, gridSize;
-    private int[][][] controlPoints;        // Positions of control points
-    private Polygon[][] controlPointsNodes; // Polygons bounding each draggable control point
+    private Mesh controlPoints;             // Positions of control points
+    private ControlPointIndex index;        // Hit-test grid over control points, built on first click
     private int[] selectedPoint = {-1, -1}; // Current control point selected
     Color controlPointColor = Color.RED;    // Color of control points/lines
     Color selectedPointColor = Color.YELLOW;// Color of selected point
 
+    private static final int NODE_RADIUS = 4;   // Half the side of a control point's square
+    private static final BasicStroke LINE_STROKE = new BasicStroke(1);
+
+    // Mesh offsets of the six neighbours that bound a control point's drag
+    private static final int[] BOUND_ROWS = {-1, 0, 1, 1, 0, -1};
+    private static final int[] BOUND_COLS = {-1, -1, 0, 1, 1, 0};
+
     public MyImageObj() { }
 
     // copy constructor
@@ -24,22 +34,7 @@ public class MyImageObj extends JLabel {
         gridSize = I.gridSize;
 
         // Copy in control points
-        controlPoints = new int[gridSize + 2][gridSize + 2][2];
-        for (int i = 0; i < gridSize + 2; i++) {
-            for (int j = 0; j < gridSize + 2; j++) {
-                for (int k = 0; k < 2; k++)
-                    controlPoints[i][j][k] = I.controlPoints[i][j][k];
-            }
-        }
-
-        // Copy in control points polygons
-        controlPointsNodes = new Polygon[gridSize][gridSize];
-        for (int i = 0; i < gridSize; i++) {
-            for (int j = 0; j < gridSize; j++) {
-                controlPointsNodes[i][j] = new Polygon(I.controlPointsNodes[i][j].xpoints,
-                        I.controlPointsNodes[i][j].ypoints, I.controlPointsNodes[i][j].npoints);
-            }
-        }
+        controlPoints = I.controlPoints.copy();
 
         setPreferredSize(new Dimension(width, height));
     }
@@ -53,9 +48,6 @@ public class MyImageObj extends JLabel {
         // Create grid of control points
         createGrid();
 
-        // Instantiate array of control points nodes
-        controlPointsNodes = new Polygon[gridSize][gridSize];
-
         // Update display to img size
         setPreferredSize(new Dimension(width, height));
         repaint();
@@ -72,149 +64,227 @@ public class MyImageObj extends JLabel {
         // Create grid of control points
         createGrid();
 
-        // Instantiate array of control points nodes
-        controlPointsNodes = new Polygon[gridSize][gridSize];
-
         // Update display to img size
         setPreferredSize(new Dimension(width, height));
         repaint();
     }
 
     private void createGrid() {
-        // Instantiate array of control points (add 2 to account for border points)
-        controlPoints = new int[gridSize + 2][gridSize + 2][2];
-
-        // Evenly space the control points
-        for (int i = 0; i < gridSize + 2; i++) {
-            for (int j = 0; j < gridSize + 2; j++) {
-                controlPoints[i][j][0] = (int)(j * (width / ((double)gridSize + 1)));
-                controlPoints[i][j][1] = (int)(i * (height / ((double)gridSize + 1)));
-            }
-        }
+        // Evenly spaced mesh of control points (add 2 to account for border points)
+        controlPoints = Mesh.grid(gridSize, width, height);
+        index = null;
+        selectedPoint = new int[] {-1, -1};
     }
 
-    private void drawGrid(Graphics g) {
+    private void drawGrid(Graphics g, Rectangle clip) {
         // Loop over non-border points
         for (int i = 1; i < gridSize + 1; i++) {
             for (int j = 1; j < gridSize + 1; j++) {
-                drawControlPoint(i, j, g);
+                drawControlPoint(i, j, g, clip);
             }
         }
     }
 
-    private void drawControlPoint(int i, int j, Graphics g) {
-        Graphics2D picture = (Graphics2D) g;
-        picture.setColor(controlPointColor);
+    private void drawControlPoint(int i, int j, Graphics g, Rectangle clip) {
+        // Get position of control point, skipping it if outside the area being repainted
+        int x = (int)controlPoints.getX(i, j);
+        int y = (int)controlPoints.getY(i, j);
+        if (x + NODE_RADIUS < clip.x || x - NODE_RADIUS > clip.x + clip.width
+                || y + NODE_RADIUS < clip.y || y - NODE_RADIUS > clip.y + clip.height)
+            return;
+
         // If point is selected point, change color
         if ((selectedPoint[0] == j) && (selectedPoint[1] == i))
-            picture.setColor(selectedPointColor);
-        picture.setStroke(new BasicStroke(2));
-
-        // Get position of control point
-        int x = controlPoints[i][j][0];
-        int y = controlPoints[i][j][1];
-
-        // Create points for node to bound control point
-        int xPoints[] = {x - 4, x + 4, x + 4, x - 4};
-        int yPoints[] = {y - 4, y - 4, y + 4, y + 4};
+            g.setColor(selectedPointColor);
+        else
+            g.setColor(controlPointColor);
 
         // Draw node
-        controlPointsNodes[i - 1][j - 1] = new Polygon(xPoints, yPoints, 4);
-        g.fillPolygon(controlPointsNodes[i-1][j-1]);
+        g.fillRect(x - NODE_RADIUS, y - NODE_RADIUS, 2 * NODE_RADIUS, 2 * NODE_RADIUS);
     }
 
-    private void drawLines(Graphics g) {
+    private void drawLines(Graphics g, Rectangle clip) {
         Graphics2D picture = (Graphics2D) g;
         picture.setColor(controlPointColor);
-        picture.setStroke(new BasicStroke(1));
+        picture.setStroke(LINE_STROKE);
 
         // Loop over control points (ignore east and south borders because lines would be out of range)
         for (int i = 0; i < gridSize + 1; i++) {
             for (int j = 0; j < gridSize + 1; j++) {
                 // Draw vertical line south if not on west border
                 if (i > 0)
-                    g.drawLine(controlPoints[j][i][0], controlPoints[j][i][1],
-                            controlPoints[j + 1][i][0], controlPoints[j + 1][i][1]);
+                    drawLine(g, clip, j, i, j + 1, i);
                 // Draw horizontal line east if not on north border
                 if (j > 0)
-                    g.drawLine(controlPoints[j][i][0], controlPoints[j][i][1],
-                            controlPoints[j][i + 1][0], controlPoints[j][i + 1][1]);
+                    drawLine(g, clip, j, i, j, i + 1);
                 // Draw diagonal line southeast
-                g.drawLine(controlPoints[j][i][0], controlPoints[j][i][1],
-                        controlPoints[j + 1][i + 1][0], controlPoints[j + 1][i + 1][1]);
+                drawLine(g, clip, j, i, j + 1, i + 1);
             }
         }
     }
 
-    public int[] clickOnPoint(Point click) {
-        // Return null if click not on control point
-        selectedPoint = null;
-
-        // Loop over clickable control points
-        for (int i = 0; i < gridSize; i++) {
-            for (int j = 0; j < gridSize; j++) {
-                // If bounding node contains click
-                if (controlPointsNodes[j][i].contains(click)) {
-                    // Set selected point
-                    selectedPoint = new int[2];
-                    selectedPoint[0] = j + 1;
-                    selectedPoint[1] = i + 1;
-                    break;
-                }
-            }
+    // Line between control points (i1, j1) and (i2, j2), unless it misses clip
+    private void drawLine(Graphics g, Rectangle clip, int i1, int j1, int i2, int j2) {
+        int x1 = (int)controlPoints.getX(i1, j1), y1 = (int)controlPoints.getY(i1, j1);
+        int x2 = (int)controlPoints.getX(i2, j2), y2 = (int)controlPoints.getY(i2, j2);
+        if (Math.max(x1, x2) < clip.x - 1 || Math.min(x1, x2) > clip.x + clip.width
+                || Math.max(y1, y2) < clip.y - 1 || Math.min(y1, y2) > clip.y + clip.height)
+            return;
+        g.drawLine(x1, y1, x2, y2);
+    }
+
+    // Repaint only the area around control point (row, col) and the six
+    // neighbours that share its triangles, which holds every line and
+    // node that moving or recolouring the point can change
+    private void repaintAround(int row, int col) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int k = -1; k < 6; k++) {
+            int r = k < 0 ? row : row + BOUND_ROWS[k], c = k < 0 ? col : col + BOUND_COLS[k];
+            int x = (int)controlPoints.getX(r, c), y = (int)controlPoints.getY(r, c);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
         }
+        int pad = NODE_RADIUS + 1;
+        repaint(minX - pad, minY - pad, maxX - minX + 2 * pad + 1, maxY - minY + 2 * pad + 1);
+    }
 
-        return selectedPoint;
+    // The displayed image scaled to width x height once, in a format the
+    // screen can copy directly, so repaints blit it instead of rescaling
+    private BufferedImage getBackgroundImage() {
+        ImagePyramid p = getPyramid();
+        if (p == null)
+            return null;
+        if (background == null || background.getWidth() != width || background.getHeight() != height) {
+            int transparency = filteredImg.getColorModel().getTransparency();
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            background = gc != null ? gc.createCompatibleImage(width, height, transparency)
+                    : new BufferedImage(width, height, transparency == Transparency.OPAQUE
+                            ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = background.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(p.forSize(width, height), 0, 0, width, height, null);
+            g.dispose();
+        }
+        return background;
+    }
+
+    public int[] clickOnPoint(Point click) {
+        // Null if click not on control point
+        if (index == null)
+            index = new ControlPointIndex(controlPoints, width, height, NODE_RADIUS);
+        return index.find(click.x, click.y);
     }
 
     public boolean pointInBounds(int[] selectedPoint, Point p) {
         // Get indices of selected point
         int i = selectedPoint[1];
         int j = selectedPoint[0];
-        int[] x = new int[6];
-        int[] y = new int[6];
-
-        // Set positions of points that define the bounds of selected point
-        x[0] = controlPoints[j-1][i-1][0];
-        y[0] = controlPoints[j-1][i-1][1];
-        x[1] = controlPoints[j][i-1][0];
-        y[1] = controlPoints[j][i-1][1];
-        x[2] = controlPoints[j+1][i][0];
-        y[2] = controlPoints[j+1][i][1];
-        x[3] = controlPoints[j+1][i+1][0];
-        y[3] = controlPoints[j+1][i+1][1];
-        x[4] = controlPoints[j][i+1][0];
-        y[4] = controlPoints[j][i+1][1];
-        x[5] = controlPoints[j-1][i][0];
-        y[5] = controlPoints[j-1][i][1];
-
-        Polygon bounds = new Polygon(x, y, 6);
+
+        // Crossing test against the hexagon through the six neighbouring
+        // points, with the same edge rules as Polygon.contains, without
+        // building a Polygon on every drag event
+        int hits = 0;
+        int lastx = (int)controlPoints.getX(j + BOUND_ROWS[5], i + BOUND_COLS[5]);
+        int lasty = (int)controlPoints.getY(j + BOUND_ROWS[5], i + BOUND_COLS[5]);
+        for (int k = 0; k < 6; k++) {
+            int curx = (int)controlPoints.getX(j + BOUND_ROWS[k], i + BOUND_COLS[k]);
+            int cury = (int)controlPoints.getY(j + BOUND_ROWS[k], i + BOUND_COLS[k]);
+            if (crosses(p.x, p.y, lastx, lasty, curx, cury))
+                hits++;
+            lastx = curx;
+            lasty = cury;
+        }
 
         // Return whether the point is in bounds for that control point
-        return bounds.contains(p);
+        return (hits & 1) != 0;
+    }
+
+    // Whether a ray from (x, y) towards -x crosses the edge (lastx, lasty)-(curx, cury)
+    private static boolean crosses(int x, int y, int lastx, int lasty, int curx, int cury) {
+        if (cury == lasty)
+            return false;
+        int leftx;
+        if (curx < lastx) {
+            if (x >= lastx)
+                return false;
+            leftx = curx;
+        } else {
+            if (x >= curx)
+                return false;
+            leftx = lastx;
+        }
+
+        double test1, test2;
+        if (cury < lasty) {
+            if (y < cury || y >= lasty)
+                return false;
+            if (x < leftx)
+                return true;
+            test1 = x - curx;
+            test2 = y - cury;
+        } else {
+            if (y < lasty || y >= cury)
+                return false;
+            if (x < leftx)
+                return true;
+            test1 = x - lastx;
+            test2 = y - lasty;
+        }
+        return test1 < (test2 / (lasty - cury) * (lastx - curx));
     }
 
-    public int[][][] getControlPoints() {
+    // Points moved through the returned mesh are not seen by clickOnPoint
+    // until setControlPoints is called again
+    public Mesh getControlPoints() {
         return controlPoints;
     }
 
-    public void setControlPoints(int[][][] C) {
-        controlPoints = C;
+    // Take a copy of C so later edits here never move someone else's points
+    public void setControlPoints(Mesh C) {
+        controlPoints = C.copy();
+        if (C.getRows() - 2 != gridSize) {
+            gridSize = C.getRows() - 2;
+            selectedPoint = new int[] {-1, -1};
+        }
+        index = null;
+        repaint();
     }
 
     public void setImage(BufferedImage i) {
         if (i == null) return;
         img = i;
         filteredImg = i;
+        pyramid = null;
+        originalPyramid = null;
+        background = null;
         this.repaint();
     }
 
     public void setFilteredImg(BufferedImage i) {
         if (i == null) return;
         filteredImg = i;
+        pyramid = null;
+        background = null;
         this.repaint();
     }
 
+    // Pyramid over the displayed image, for consumers that want it smaller
+    public ImagePyramid getPyramid() {
+        if (pyramid == null && filteredImg != null)
+            pyramid = new ImagePyramid(filteredImg);
+        return pyramid;
+    }
+
+    // Pyramid over the image before any intensity adjustment
+    public ImagePyramid getOriginalPyramid() {
+        if (originalPyramid == null && img != null)
+            originalPyramid = filteredImg == img ? getPyramid() : new ImagePyramid(img);
+        return originalPyramid;
+    }
+
     public BufferedImage getOriginalImg() {
         return img;
     }
@@ -224,16 +294,21 @@ public class MyImageObj extends JLabel {
     }
 
     public void setControlPoint(int i, int j, int x, int y) {
-        controlPoints[j][i][0] = x;
-        controlPoints[j][i][1] = y;
-        repaint();
+        // Dirty area is the point's neighbourhood before and after the move
+        repaintAround(j, i);
+        controlPoints.set(j, i, x, y);
+        if (index != null)
+            index.move(j, i, x, y);
+        repaintAround(j, i);
     }
 
     public void setSelectedPoint(int i, int j) {
+        if (selectedPoint[0] >= 0)
+            repaintAround(selectedPoint[1], selectedPoint[0]);
         selectedPoint = new int[2];
         selectedPoint[0] = j;
         selectedPoint[1] = i;
-        repaint();
+        repaintAround(i, j);
     }
 
     public void setWidth(int w) { width = w; }
@@ -247,15 +322,21 @@ public class MyImageObj extends JLabel {
     public void setGridSize(int g) {
         gridSize = g;
         createGrid();
-        controlPointsNodes = new Polygon[gridSize][gridSize];
         repaint();
     }
 
     public void setControlPointColor(Color c) { controlPointColor = c; }
 
     public void paintComponent(Graphics g) {
-        g.drawImage(filteredImg, 0, 0, width, height, this);
-        drawLines(g);
-        drawGrid(g);
+        // Only the clip is redrawn: drags repaint just the moved point's
+        // neighbourhood, and the background is a 1:1 copy of the cache
+        Rectangle clip = g.getClipBounds();
+        if (clip == null)
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        BufferedImage bg = getBackgroundImage();
+        if (bg != null)
+            g.drawImage(bg, 0, 0, this);
+        drawLines(g, clip);
+        drawGrid(g, clip);
     }
 }
\ No newline at end of file
@@ -0,0 +1,279 @@
+import java.awt.image.*;
+
+public class PixelBuffer
+{
+
+    // Layouts read through an intensity table; values outside the
+    // BufferedImage type constants so they share the one switch in get
+    private static final int LUT_INT_RGB = -1;
+    private static final int LUT_INT_ARGB = -2;
+    private static final int LUT_OTHER = -3;
+
+    final int width, height;
+    final int originX, originY;     // position of pixel (0, 0) in the whole image
+    private final BufferedImage img;
+    private final int type;
+    private final int[] ints;       // backing array for packed int layouts
+    private final byte[] bytes;     // backing array for interleaved byte layouts
+    private final int stride;       // scanline stride in array elements
+    private final boolean opaque;
+    private final int[] lut;        // intensity table applied by get, or null
+
+    public PixelBuffer(BufferedImage i)
+    {
+        this(i, null);
+    }
+
+    // Buffer whose get (and every sample) returns pixels with the intensity
+    // table l applied, leaving the image itself untouched; l may be null
+    public PixelBuffer(BufferedImage i, IntensityLut l)
+    {
+        this(i, l, 0, 0);
+    }
+
+    // Buffer over i holding only the part of a larger image whose upper
+    // left pixel is at (x, y) in it. get and the samplers still take
+    // coordinates relative to i; the warp code (see MorphTools.blendMesh)
+    // uses the origin to place a region of a frame or a source.
+    public PixelBuffer(BufferedImage i, IntensityLut l, int x, int y)
+    {
+        img = i;
+        originX = x;
+        originY = y;
+        width = i.getWidth();
+        height = i.getHeight();
+
+        // Only touch the backing array directly for the layouts we know how
+        // to decode; anything else goes through getRGB/setRGB
+        WritableRaster raster = i.getRaster();
+        DataBuffer db = raster.getDataBuffer();
+        SampleModel sm = raster.getSampleModel();
+        boolean plain = raster.getParent() == null && db.getNumBanks() == 1
+            && db.getOffset() == 0;
+        int t = i.getType();
+        int layout;
+
+        if (plain && db instanceof DataBufferInt
+                && sm instanceof SinglePixelPackedSampleModel
+                && (t == BufferedImage.TYPE_INT_RGB
+                    || t == BufferedImage.TYPE_INT_ARGB)) {
+            layout = t;
+            ints = ((DataBufferInt)db).getData();
+            bytes = null;
+            stride = ((SinglePixelPackedSampleModel)sm).getScanlineStride();
+        }
+        else if (plain && db instanceof DataBufferByte
+                && sm instanceof PixelInterleavedSampleModel
+                && (t == BufferedImage.TYPE_3BYTE_BGR
+                    || t == BufferedImage.TYPE_4BYTE_ABGR)) {
+            layout = t;
+            ints = null;
+            bytes = ((DataBufferByte)db).getData();
+            stride = ((PixelInterleavedSampleModel)sm).getScanlineStride();
+        }
+        else {
+            layout = BufferedImage.TYPE_CUSTOM;
+            ints = null;
+            bytes = null;
+            stride = 0;
+        }
+        opaque = t != BufferedImage.TYPE_INT_ARGB && t != BufferedImage.TYPE_4BYTE_ABGR
+            && !i.getColorModel().hasAlpha();
+
+        lut = l == null || l.isIdentity() ? null : l.table();
+        if (lut == null)
+            type = layout;
+        else if (layout == BufferedImage.TYPE_INT_RGB)
+            type = LUT_INT_RGB;
+        else if (layout == BufferedImage.TYPE_INT_ARGB)
+            type = LUT_INT_ARGB;
+        else
+            type = LUT_OTHER;
+    }
+
+    public BufferedImage getImage()
+    {
+        return img;
+    }
+
+    // Backing array of a packed int image, for kernels that work on whole
+    // runs of pixels; null for any other layout
+    int[] getInts()
+    {
+        return ints;
+    }
+
+    int getStride()
+    {
+        return stride;
+    }
+
+    // True when the stored pixels have no alpha channel and read as opaque
+    boolean isOpaque()
+    {
+        return opaque;
+    }
+
+    // Intensity table that get applies to each color channel, or null
+    int[] getLut()
+    {
+        return lut;
+    }
+
+    // Packed ARGB value of pixel (x, y); no bounds checking
+    public int get(int x, int y)
+    {
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+                return 0xff000000 | ints[y * stride + x];
+            case BufferedImage.TYPE_INT_ARGB:
+                return ints[y * stride + x];
+            case LUT_INT_RGB:
+                return applyLut(lut, 0xff000000 | ints[y * stride + x]);
+            case LUT_INT_ARGB:
+                return applyLut(lut, ints[y * stride + x]);
+            case LUT_OTHER:
+                return applyLut(lut, img.getRGB(x, y));
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                int o = y * stride + x * 3;
+                return 0xff000000 | ((bytes[o + 2] & 0xff) << 16)
+                    | ((bytes[o + 1] & 0xff) << 8) | (bytes[o] & 0xff);
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                int o = y * stride + x * 4;
+                return ((bytes[o] & 0xff) << 24) | ((bytes[o + 3] & 0xff) << 16)
+                    | ((bytes[o + 2] & 0xff) << 8) | (bytes[o + 1] & 0xff);
+            }
+            default:
+                return img.getRGB(x, y);
+        }
+    }
+
+    // Store packed ARGB value at pixel (x, y); no bounds checking
+    public void set(int x, int y, int argb)
+    {
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case LUT_INT_RGB:
+            case LUT_INT_ARGB:
+                ints[y * stride + x] = argb;
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                int o = y * stride + x * 3;
+                bytes[o] = (byte)argb;
+                bytes[o + 1] = (byte)(argb >> 8);
+                bytes[o + 2] = (byte)(argb >> 16);
+                break;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                int o = y * stride + x * 4;
+                bytes[o] = (byte)(argb >> 24);
+                bytes[o + 1] = (byte)argb;
+                bytes[o + 2] = (byte)(argb >> 8);
+                bytes[o + 3] = (byte)(argb >> 16);
+                break;
+            }
+            default:
+                img.setRGB(x, y, argb);
+        }
+    }
+
+    // Pixel (x, y), or the nearest edge pixel if it lies outside the image
+    public int getClamped(int x, int y)
+    {
+        return get(clamp(x, width), clamp(y, height));
+    }
+
+    // Sample at continuous coordinate (x, y), pixel (i, j) covering
+    // [i, i+1) x [j, j+1); coordinates outside the image clamp to the edge
+    public int sampleNearest(double x, double y)
+    {
+        return getClamped((int)Math.floor(x), (int)Math.floor(y));
+    }
+
+    // Bilinear in fixed point: the fractional position is rounded to 1/256
+    // of a pixel and two channels are interpolated at a time
+    public int sampleBilinear(double x, double y)
+    {
+        return sampleBilinear((int)Math.floor((x - 0.5) * 256), (int)Math.floor((y - 0.5) * 256));
+    }
+
+    // Bilinear at (fx, fy) given in 1/256 pixel, with pixel centers on
+    // multiples of 256
+    public int sampleBilinear(int fx, int fy)
+    {
+        int x0 = fx >> 8, y0 = fy >> 8;
+        int wx = fx & 0xff, wy = fy & 0xff;
+        int x1 = clamp(x0 + 1, width), y1 = clamp(y0 + 1, height);
+        x0 = clamp(x0, width);
+        y0 = clamp(y0, height);
+
+        int c00 = get(x0, y0), c10 = get(x1, y0);
+        int c01 = get(x0, y1), c11 = get(x1, y1);
+        return lerp(lerp(c00, c10, wx), lerp(c01, c11, wx), wy);
+    }
+
+    // a + (b - a) * w/256 for each channel of two ARGB values
+    private static int lerp(int a, int b, int w)
+    {
+        if (w == 0)
+            return a;
+        int inv = 256 - w;
+        int rb = (((a & 0xff00ff) * inv + (b & 0xff00ff) * w + 0x800080) >>> 8) & 0xff00ff;
+        int ag = (((a >>> 8) & 0xff00ff) * inv + ((b >>> 8) & 0xff00ff) * w + 0x800080) & 0xff00ff00;
+        return ag | rb;
+    }
+
+    // Bicubic (Catmull-Rom) over the 4x4 pixels around (x, y), clamped to
+    // 0..255 since the kernel can overshoot at sharp edges
+    public int sampleBicubic(double x, double y)
+    {
+        double fx = x - 0.5, fy = y - 0.5;
+        int ix = (int)Math.floor(fx), iy = (int)Math.floor(fy);
+        double tx = fx - ix, ty = fy - iy;
+        double wx0 = cubic(1 + tx), wx1 = cubic(tx), wx2 = cubic(1 - tx), wx3 = cubic(2 - tx);
+        double wy0 = cubic(1 + ty), wy1 = cubic(ty), wy2 = cubic(1 - ty), wy3 = cubic(2 - ty);
+        int xa = clamp(ix - 1, width), xb = clamp(ix, width), xc = clamp(ix + 1, width), xd = clamp(ix + 2, width);
+
+        double a = 0, r = 0, g = 0, b = 0;
+        for (int k = 0; k < 4; k++) {
+            int yy = clamp(iy - 1 + k, height);
+            double wy = k == 0 ? wy0 : k == 1 ? wy1 : k == 2 ? wy2 : wy3;
+            int p0 = get(xa, yy), p1 = get(xb, yy), p2 = get(xc, yy), p3 = get(xd, yy);
+            a += wy * (wx0 * (p0 >>> 24) + wx1 * (p1 >>> 24) + wx2 * (p2 >>> 24) + wx3 * (p3 >>> 24));
+            r += wy * (wx0 * ((p0 >> 16) & 0xff) + wx1 * ((p1 >> 16) & 0xff)
+                + wx2 * ((p2 >> 16) & 0xff) + wx3 * ((p3 >> 16) & 0xff));
+            g += wy * (wx0 * ((p0 >> 8) & 0xff) + wx1 * ((p1 >> 8) & 0xff)
+                + wx2 * ((p2 >> 8) & 0xff) + wx3 * ((p3 >> 8) & 0xff));
+            b += wy * (wx0 * (p0 & 0xff) + wx1 * (p1 & 0xff) + wx2 * (p2 & 0xff) + wx3 * (p3 & 0xff));
+        }
+        return channel(a) << 24 | channel(r) << 16 | channel(g) << 8 | channel(b);
+    }
+
+    // Catmull-Rom kernel at distance d (0..2)
+    private static double cubic(double d)
+    {
+        if (d < 1)
+            return (1.5 * d - 2.5) * d * d + 1;
+        return ((-0.5 * d + 2.5) * d - 4) * d + 2;
+    }
+
+    private static int channel(double v)
+    {
+        int c = (int)(v + 0.5);
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+
+    // argb with each color channel c replaced by lut[c]
+    static int applyLut(int[] lut, int argb)
+    {
+        return (argb & 0xff000000) | lut[(argb >>> 16) & 0xff] << 16
+            | lut[(argb >>> 8) & 0xff] << 8 | lut[argb & 0xff];
+    }
+
+    private static int clamp(int v, int size)
+    {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+}
@@ -0,0 +1,88 @@
+// Inner loops over runs of packed ARGB pixels, shared by the warp and
+// blend code in MorphTools. This class is the plain Java version and is
+// always available. When the JVM runs with the jdk.incubator.vector module
+// and simd/VectorPixelKernels.java has been compiled onto the class path,
+// get() returns that subclass instead, which does the same arithmetic on
+// whole SIMD registers at a time:
+//
+//   javac --add-modules jdk.incubator.vector -cp . -d . simd/VectorPixelKernels.java
+//   java --add-modules jdk.incubator.vector Morph ...
+//
+// Every implementation gives bit-identical results, so which one runs never
+// shows in the output. -Dmorph.simd=false forces the plain version.
+public class PixelKernels {
+
+    private static final PixelKernels INSTANCE = load();
+
+    public static PixelKernels get() {
+        return INSTANCE;
+    }
+
+    // Short name for logs and benchmarks
+    public String getName() {
+        return "scalar";
+    }
+
+    // dst[d..d+len) = a[ao..ao+len) blended with b[bo..bo+len), weight/256 on b
+    public void blend(int[] a, int ao, int[] b, int bo, int[] dst, int d, int len, int weight) {
+        int inv = 256 - weight;
+        for (int i = 0; i < len; i++) {
+            int p = a[ao + i], q = b[bo + i];
+            int rb = (((p & 0xff00ff) * inv + (q & 0xff00ff) * weight + 0x800080) >>> 8) & 0xff00ff;
+            int ag = (((p >>> 8) & 0xff00ff) * inv + ((q >>> 8) & 0xff00ff) * weight + 0x800080) & 0xff00ff00;
+            dst[d + i] = ag | rb;
+        }
+    }
+
+    // dst[d..d+len) = bilinear samples of the width x height image in src
+    // (rows stride apart) at fx[f..f+len), fy[f..f+len), in 1/256 pixel
+    // with pixel centers on multiples of 256, clamped to the edge. Opaque
+    // sources read with alpha 0xff. If lut is not null each source pixel
+    // is passed through it first (see PixelBuffer.getLut). Same result as
+    // PixelBuffer.sampleBilinear.
+    public void bilinear(int[] src, int stride, int width, int height, boolean opaque, int[] lut,
+                         int[] fx, int[] fy, int f, int[] dst, int d, int len) {
+        int alpha = opaque ? 0xff000000 : 0;
+        for (int i = 0; i < len; i++) {
+            int x0 = fx[f + i] >> 8, y0 = fy[f + i] >> 8;
+            int wx = fx[f + i] & 0xff, wy = fy[f + i] & 0xff;
+            int x1 = clamp(x0 + 1, width), y1 = clamp(y0 + 1, height);
+            x0 = clamp(x0, width);
+            y0 = clamp(y0, height);
+            int r0 = y0 * stride, r1 = y1 * stride;
+            int c00 = alpha | src[r0 + x0], c10 = alpha | src[r0 + x1];
+            int c01 = alpha | src[r1 + x0], c11 = alpha | src[r1 + x1];
+            if (lut != null) {
+                c00 = PixelBuffer.applyLut(lut, c00);
+                c10 = PixelBuffer.applyLut(lut, c10);
+                c01 = PixelBuffer.applyLut(lut, c01);
+                c11 = PixelBuffer.applyLut(lut, c11);
+            }
+            dst[d + i] = lerp(lerp(c00, c10, wx), lerp(c01, c11, wx), wy);
+        }
+    }
+
+    static int lerp(int a, int b, int w) {
+        int inv = 256 - w;
+        int rb = (((a & 0xff00ff) * inv + (b & 0xff00ff) * w + 0x800080) >>> 8) & 0xff00ff;
+        int ag = (((a >>> 8) & 0xff00ff) * inv + ((b >>> 8) & 0xff00ff) * w + 0x800080) & 0xff00ff00;
+        return ag | rb;
+    }
+
+    static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+
+    // The vector kernels if they can be loaded and run here, else this class
+    private static PixelKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("morph.simd", "true")))
+            return new PixelKernels();
+        try {
+            Class<?> c = Class.forName("VectorPixelKernels");
+            return (PixelKernels) c.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // Not compiled, or the module is not in the boot layer
+            return new PixelKernels();
+        }
+    }
+}
@@ -1,21 +1,78 @@
+import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PreviewWindow extends JFrame{
     private MyImageObj grid;        // MyImageObj to show control point grid animation
-    private int[][][] controlPointsInitial, controlPointsFinal;
+    private Mesh controlPointsInitial, controlPointsFinal;
     private Timer animationTimer;   // timer to drive animation
     private int framesPerSecond, seconds, frames, count = 0;
     private int frameLength;        // length of a frame in milliseconds
+    private boolean progressive;    // frames arrive while the animation plays
+    private boolean rendering;      // more frames may still arrive
+    private BitSet framesReady = new BitSet();
+    private FrameCache frameCache = new FrameCache();   // frames at display size
+    private ExecutorService loader;  // reads evicted frames back from disk off the EDT
+    private final Set<Integer> loading = new HashSet<>();   // frames queued on loader
+    private final Set<Integer> failed = new HashSet<>();    // frames that could not be read
+    public static final int PREFETCH = 8;   // frames loaded ahead of playback
+    private String frameSuffix = ".jpg";    // extension of frame files in renders/, null if there are none
+    private FrameStore frameStore;          // raw frames to read instead of files, may be null
+
+    // Scrubbing renders the real morph at the slider's time: a coarse
+    // version straight away, then full resolution once the slider rests
+    public static final int SCRUB_STEPS = 1000;     // slider positions from start to end
+    public static final int COARSE_SIZE = 160;      // longest side of the quick render
+    public static final int REFINE_DELAY = 200;     // milliseconds at rest before refining
+    private final MyImageObj sourceInitial, sourceFinal;
+    private JSlider scrubSlider;
+    private boolean followingAnimation;     // slider moved by the timer, not the user
+    private Timer refineTimer;
+    private ExecutorService scrubber;       // renders scrub requests off the EDT
+    private final AtomicInteger scrubRequest = new AtomicInteger(); // latest request; older ones are dropped
+    private double scrubTime;
+    private boolean scrubbed;               // the slider has been used
+    private Scene scene;                    // sources of the scrub renders, replaced when they change
+
+    // Snapshot of the images and control points scrub renders are made from
+    private static class Scene {
+        final ImagePyramid initial, fin;    // null until an image is loaded
+        final Mesh initialPoints, finalPoints;
+        final int width, height;            // size of the space the points are in
+        MorphRenderer coarse, full;         // created and used on the scrub thread only
+        MorphRenderer.Buffers coarseBuffers, fullBuffers;
+
+        Scene(MyImageObj i, MyImageObj f) {
+            initial = i.getPyramid();
+            fin = f.getPyramid();
+            initialPoints = i.getControlPoints().copy();
+            finalPoints = f.getControlPoints().copy();
+            Dimension d = i.getPreferredSize();
+            width = d.width;
+            height = d.height;
+        }
+    }
 
     public PreviewWindow(MyImageObj i, MyImageObj f, int fps, int s, boolean isMorph) {
         super("Preview");
 
         // Instantiate grid using copy constructor on initial MyImageObj i
         grid = new MyImageObj(i);
+        sourceInitial = i;
+        sourceFinal = f;
         // Get controlPoints arrays for initial and final
         controlPointsInitial = i.getControlPoints();
         controlPointsFinal = f.getControlPoints();
@@ -32,9 +89,26 @@ public class PreviewWindow extends JFrame{
                 // If animation is not yet complete
                 if (count < frames) {
 
-                    // Load rendered morph frames if window isMorph
+                    // Wait for the next frame while it is still being rendered
+                    if (isMorph && progressive && !framesReady.get(count)) {
+                        if (!rendering)
+                            animationTimer.stop();
+                        return;
+                    }
+
+                    // Show rendered morph frames if window isMorph, waiting
+                    // for any frame that has to come back from disk
                     if (isMorph) {
-                        grid.setImage(readImage("renders/" + Integer.toString(count) + ".jpg"));
+                        BufferedImage frame = frameCache.get(count);
+                        if (frame == null) {
+                            if (failed.contains(count))
+                                animationTimer.stop();
+                            else
+                                loadFrame(count);
+                            return;
+                        }
+                        grid.setImage(frame);
+                        prefetch(count + 1);
                     }
 
                     // Move control points a frame
@@ -42,6 +116,11 @@ public class PreviewWindow extends JFrame{
 
                     // Increment frame count
                     count++;
+
+                    // Keep the scrub slider with the animation
+                    followingAnimation = true;
+                    scrubSlider.setValue(frames > 0 ? count * SCRUB_STEPS / frames : 0);
+                    followingAnimation = false;
                 }
                 else {
                     // Stop animation
@@ -50,10 +129,31 @@ public class PreviewWindow extends JFrame{
             }
         });
 
+        // Release cached frames and the loader when the window goes away
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        // Scrub slider, rendering the morph at the chosen time
+        scrubSlider = new JSlider(0, SCRUB_STEPS, 0);
+        scrubSlider.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                if (!followingAnimation)
+                    scrubTo((double) scrubSlider.getValue() / SCRUB_STEPS);
+            }
+        });
+        refineTimer = new Timer(REFINE_DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                requestScrub(scrubTime, false);
+            }
+        });
+        refineTimer.setRepeats(false);
+
         Container c = getContentPane();
 
-        // Add grid to frame
-        c.add(grid);
+        // Add grid and scrub slider to frame
+        c.add(grid, BorderLayout.CENTER);
+        c.add(scrubSlider, BorderLayout.SOUTH);
 
         pack();
         setVisible(true);
@@ -66,19 +166,8 @@ public class PreviewWindow extends JFrame{
             grid.setControlPoints(controlPointsFinal);
         }
         else {
-            double x, y;
-            // Loop over control points nodes
-            for (int i = 1; i < grid.getGridSize() + 1; i++) {
-                for (int j = 1; j < grid.getGridSize() + 1; j++) {
-                    // Calculate position that is count/frames of the way between initial position and final position
-                    x = ((double)(controlPointsFinal[i][j][0] - controlPointsInitial[i][j][0]) * count / frames) +
-                            controlPointsInitial[i][j][0];
-                    y = ((double)(controlPointsFinal[i][j][1] - controlPointsInitial[i][j][1]) * count / frames) +
-                            controlPointsInitial[i][j][1];
-                    // Update control point to new position
-                    grid.setControlPoint(j, i, (int)x, (int)y);
-                }
-            }
+            // Move every control point count/frames of the way between initial position and final position
+            Mesh.lerp(controlPointsInitial, controlPointsFinal, (double)count / frames, grid.getControlPoints());
         }
         repaint();
     }
@@ -116,6 +205,209 @@ public class PreviewWindow extends JFrame{
         return img;
     }
 
+    // Play frames only once frameReady has been called for them
+    public void beginRendering() {
+        progressive = true;
+        rendering = true;
+        framesReady.clear();
+    }
+
+    public void frameReady(int index) {
+        framesReady.set(index);
+    }
+
+    // No further frames will arrive; playback stops at the first missing one
+    public void endRendering() {
+        rendering = false;
+    }
+
+    // Hand a rendered frame straight to the preview. Called from render
+    // threads; frame is copied at display size since the caller reuses it.
+    public void cacheFrame(int index, BufferedImage frame) {
+        frameCache.put(index, scaleToDisplay(frame));
+    }
+
+    public void setFrameSuffix(String suffix) {
+        frameSuffix = suffix;
+    }
+
+    // Frames are not stored anywhere they can be read back from, as with
+    // GIF and AVI output, so keep every one of them once it has arrived
+    public void keepAllFrames() {
+        frameSuffix = null;
+        frameCache = new FrameCache(Long.MAX_VALUE, false);
+    }
+
+    // Read frames that are not cached by index from store rather than from files
+    public void setFrameStore(FrameStore store) {
+        frameStore = store;
+    }
+
+    public void setFrameCache(FrameCache c) {
+        frameCache = c;
+    }
+
+    public FrameCache getFrameCache() {
+        return frameCache;
+    }
+
+    private BufferedImage scaleToDisplay(BufferedImage frame) {
+        Dimension d = grid.getPreferredSize();
+        BufferedImage img = new BufferedImage(d.width, d.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(frame, 0, 0, d.width, d.height, null);
+        g.dispose();
+        return img;
+    }
+
+    // Queue frames after index that are ready but no longer cached
+    private void prefetch(int index) {
+        for (int i = index; i < Math.min(frames, index + PREFETCH); i++) {
+            if (progressive && !framesReady.get(i))
+                break;
+            if (!frameCache.contains(i))
+                loadFrame(i);
+        }
+    }
+
+    // Read renders/<index>.jpg into the cache on the loader thread
+    private void loadFrame(final int index) {
+        if (frameStore == null && frameSuffix == null) {
+            failed.add(index);
+            return;
+        }
+        if (!loading.add(index))
+            return;
+        if (loader == null) {
+            loader = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "preview-loader");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        loader.execute(() -> {
+            boolean ok = false;
+            try {
+                BufferedImage img = frameStore != null ? frameStore.read(index)
+                        : ImageIO.read(new File("renders/" + Integer.toString(index) + frameSuffix));
+                if (img != null) {
+                    frameCache.put(index, scaleToDisplay(img));
+                    ok = true;
+                }
+            } catch (IOException e) {
+                // Missing or unreadable frame, reported below
+            }
+            final boolean loaded = ok;
+            SwingUtilities.invokeLater(() -> {
+                loading.remove(index);
+                if (!loaded)
+                    failed.add(index);
+            });
+        });
+    }
+
+    // Show the morph at time t (0..1): stop playback, move the grid there
+    // and render a coarse frame now and a full one once the slider rests
+    public void scrubTo(double t) {
+        animationTimer.stop();
+        count = (int) Math.round(t * frames);
+        scrubTime = t;
+        scrubbed = true;
+        Mesh.lerp(controlPointsInitial, controlPointsFinal, t, grid.getControlPoints());
+        repaint();
+
+        requestScrub(t, true);
+        refineTimer.restart();
+    }
+
+    // The images or control points the preview was opened with have
+    // changed; re-render the scrub position from the new ones
+    public void sourcesChanged() {
+        scene = null;
+        if (scrubbed)
+            scrubTo(scrubTime);
+    }
+
+    // Queue a render at t, superseding every earlier request
+    private void requestScrub(final double t, final boolean coarse) {
+        if (scene == null)
+            scene = new Scene(sourceInitial, sourceFinal);
+        final Scene target = scene;
+        final int request = scrubRequest.incrementAndGet();
+        if (target.initial == null || target.fin == null)
+            return;
+        if (scrubber == null) {
+            scrubber = Executors.newSingleThreadExecutor(r -> {
+                Thread th = new Thread(r, "preview-scrub");
+                th.setDaemon(true);
+                return th;
+            });
+        }
+        scrubber.execute(() -> {
+            // Skip requests overtaken while they were queued
+            if (request != scrubRequest.get())
+                return;
+            BufferedImage frame;
+            try {
+                frame = scaleToDisplay(renderScrub(target, t, coarse));
+            } catch (RuntimeException | Error e) {
+                // Such as running out of memory for a pyramid level; say so
+                // rather than leave the previous frame up as if it were this one
+                SwingUtilities.invokeLater(() -> {
+                    if (request == scrubRequest.get())
+                        JOptionPane.showMessageDialog(PreviewWindow.this, "Preview render failed: " + e,
+                                "Preview", JOptionPane.ERROR_MESSAGE);
+                });
+                return;
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (request == scrubRequest.get())
+                    grid.setImage(frame);
+            });
+        });
+    }
+
+    // Render scene at t, creating its renderers on first use. The coarse
+    // renderer works on the images scaled to COARSE_SIZE, the full one on
+    // the pyramid levels nearest the display size.
+    private static BufferedImage renderScrub(Scene scene, double t, boolean coarse) {
+        if (coarse && scene.coarse == null) {
+            scene.coarse = new MorphRenderer(shrink(scene.initial), shrink(scene.fin),
+                    scene.initialPoints, scene.finalPoints, 1, scene.width, scene.height);
+            scene.coarseBuffers = scene.coarse.createBuffers();
+        }
+        if (!coarse && scene.full == null) {
+            scene.full = new MorphRenderer(scene.initial.forSize(scene.width, scene.height),
+                    scene.fin.forSize(scene.width, scene.height),
+                    scene.initialPoints, scene.finalPoints, 1, scene.width, scene.height);
+            scene.fullBuffers = scene.full.createBuffers();
+        }
+        return coarse ? scene.coarse.renderAt(t, scene.coarseBuffers)
+                      : scene.full.renderAt(t, scene.fullBuffers);
+    }
+
+    private static BufferedImage shrink(ImagePyramid p) {
+        BufferedImage img = p.getBase();
+        double scale = Math.min(1, (double) COARSE_SIZE / Math.max(img.getWidth(), img.getHeight()));
+        int w = Math.max(1, (int) Math.round(img.getWidth() * scale));
+        int h = Math.max(1, (int) Math.round(img.getHeight() * scale));
+        return p.scaled(w, h);
+    }
+
+    @Override
+    public void dispose() {
+        animationTimer.stop();
+        refineTimer.stop();
+        scrubRequest.incrementAndGet();
+        if (scrubber != null)
+            scrubber.shutdownNow();
+        if (loader != null)
+            loader.shutdownNow();
+        frameCache.clear();
+        super.dispose();
+    }
+
     public void startTimer() {
         animationTimer.start();
     }
@@ -0,0 +1,235 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for one or more renders: time spent in each pipeline stage,
+// a histogram of whole-frame latencies, bytes written to the output and
+// bytes allocated by the render and encoder threads. Every method can be
+// called from any thread; snapshot() gives a consistent enough copy to
+// print or poll while a render is still running.
+//
+// The same numbers are also emitted per frame as Flight Recorder events
+// (MorphFrameEvent, MorphOutputEvent) when a recording is running.
+public class RenderMetrics {
+
+    // Pipeline stages
+    public static final int MESH = 0;       // interpolating the tween meshes
+    public static final int SOLVE = 1;      // per-triangle affine solves
+    public static final int WARP = 2;       // rasterizing and blending triangles
+    public static final int ENCODE = 3;     // compressing frames
+    public static final int WRITE = 4;      // writing encoded frames out
+    public static final int READ = 5;       // reading source regions (tiled renders)
+    public static final String[] STAGE_NAMES = {"mesh", "solve", "warp", "encode", "write", "read"};
+
+    // Latency histogram: SUB_BUCKETS buckets per power of two of nanoseconds,
+    // so any percentile is accurate to within 1/SUB_BUCKETS
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final LongAdder[] stageNanos = new LongAdder[STAGE_NAMES.length];
+    private final LongAdder[] stageCounts = new LongAdder[STAGE_NAMES.length];
+    private final AtomicLongArray latencies = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAdder frames = new LongAdder();
+    private final AtomicLong latencyMax = new AtomicLong();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder wallNanos = new LongAdder();
+    private final LongAdder staticPixels = new LongAdder();
+    private final LongAdder framePixels = new LongAdder();
+
+    public RenderMetrics() {
+        for (int s = 0; s < STAGE_NAMES.length; s++) {
+            stageNanos[s] = new LongAdder();
+            stageCounts[s] = new LongAdder();
+        }
+    }
+
+    public void addStage(int stage, long nanos) {
+        stageNanos[stage].add(nanos);
+        stageCounts[stage].increment();
+    }
+
+    // Record that one frame took nanos from start to finish
+    public void addFrame(long nanos) {
+        frames.increment();
+        latencies.incrementAndGet(bucket(nanos));
+        latencyMax.accumulateAndGet(nanos, Math::max);
+    }
+
+    // Record that frame index of the given output format took encodeNanos
+    // to encode and writeNanos to write, producing bytes bytes
+    public void addOutput(int index, String format, long encodeNanos, long writeNanos, long bytes) {
+        if (encodeNanos > 0)
+            addStage(ENCODE, encodeNanos);
+        if (writeNanos > 0)
+            addStage(WRITE, writeNanos);
+        bytesWritten.add(bytes);
+
+        MorphOutputEvent event = new MorphOutputEvent();
+        if (event.shouldCommit()) {
+            event.index = index;
+            event.format = format;
+            event.encodeTime = encodeNanos;
+            event.writeTime = writeNanos;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    // Record that staticPixels of a frame's pixels came from the static layer
+    public void addArea(long staticPixels, long framePixels) {
+        this.staticPixels.add(staticPixels);
+        this.framePixels.add(framePixels);
+    }
+
+    public void addAllocated(long bytes) {
+        allocated.add(bytes);
+    }
+
+    public void addWallTime(long nanos) {
+        wallNanos.add(nanos);
+    }
+
+    // Bytes allocated so far by the calling thread, or -1 if the JVM cannot tell
+    public static long threadAllocatedBytes() {
+        return THREADS != null ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) Math.max(0, nanos);
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int)(nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Midpoint of the values that fall in bucket b
+    private static long bucketValue(int b) {
+        if (b < SUB_BUCKETS)
+            return b;
+        int exp = b / SUB_BUCKETS + SUB_BITS - 1;
+        long low = (long)(SUB_BUCKETS + b % SUB_BUCKETS) << (exp - SUB_BITS);
+        return low + (1L << (exp - SUB_BITS)) / 2;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+        return b.isThreadAllocatedMemorySupported() && b.isThreadAllocatedMemoryEnabled() ? b : null;
+    }
+
+    // Point-in-time copy of the counters
+    public static class Snapshot {
+        private final long[] stageNanos = new long[STAGE_NAMES.length];
+        private final long[] stageCounts = new long[STAGE_NAMES.length];
+        private final long[] latencies;
+        private final long frames, latencyMax, bytesWritten, allocated, wallNanos, staticPixels, framePixels;
+
+        private Snapshot(RenderMetrics m) {
+            for (int s = 0; s < STAGE_NAMES.length; s++) {
+                stageNanos[s] = m.stageNanos[s].sum();
+                stageCounts[s] = m.stageCounts[s].sum();
+            }
+            latencies = new long[m.latencies.length()];
+            for (int b = 0; b < latencies.length; b++)
+                latencies[b] = m.latencies.get(b);
+            frames = m.frames.sum();
+            latencyMax = m.latencyMax.get();
+            bytesWritten = m.bytesWritten.sum();
+            allocated = m.allocated.sum();
+            wallNanos = m.wallNanos.sum();
+            staticPixels = m.staticPixels.sum();
+            framePixels = m.framePixels.sum();
+        }
+
+        public long getStageNanos(int stage) {
+            return stageNanos[stage];
+        }
+
+        public long getStageCount(int stage) {
+            return stageCounts[stage];
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getAllocatedBytes() {
+            return allocated;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        // Fraction of all frame pixels blended from the static layer rather than warped
+        public double getStaticFraction() {
+            return framePixels > 0 ? (double) staticPixels / framePixels : 0;
+        }
+
+        public long getMaxLatencyNanos() {
+            return latencyMax;
+        }
+
+        // Frame latency below which fraction p (0..1) of frames fall
+        public long getLatencyNanos(double p) {
+            long total = 0;
+            for (long n : latencies)
+                total += n;
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int b = 0; b < latencies.length; b++) {
+                seen += latencies[b];
+                if (seen >= rank)
+                    return Math.min(bucketValue(b), latencyMax);
+            }
+            return latencyMax;
+        }
+
+        // Multi-line summary for logs
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            double wall = wallNanos / 1e9;
+            sb.append(frames).append(" frames");
+            if (wallNanos > 0)
+                sb.append(String.format(Locale.ROOT, " in %.2f s (%.1f frames/s)", wall, frames / wall));
+            sb.append(String.format(Locale.ROOT, ", %.1f MB written, %s allocated%n", bytesWritten / 1e6,
+                    allocated > 0 ? String.format(Locale.ROOT, "%.1f MB", allocated / 1e6) : "unknown"));
+            sb.append(String.format(Locale.ROOT, "  frame latency  p50 %.2f ms  p99 %.2f ms  max %.2f ms%n",
+                    getLatencyNanos(0.5) / 1e6, getLatencyNanos(0.99) / 1e6, latencyMax / 1e6));
+            if (staticPixels > 0)
+                sb.append(String.format(Locale.ROOT, "  static area    %.1f%% of pixels blended, not warped%n",
+                        100 * getStaticFraction()));
+
+            long busy = 0;
+            for (long n : stageNanos)
+                busy += n;
+            sb.append(String.format("  %-10s %12s %12s %7s%n", "stage", "total ms", "ms/call", "share"));
+            for (int s = 0; s < STAGE_NAMES.length; s++) {
+                if (stageCounts[s] == 0)
+                    continue;
+                sb.append(String.format(Locale.ROOT, "  %-10s %12.1f %12.3f %6.1f%%%n", STAGE_NAMES[s],
+                        stageNanos[s] / 1e6, stageNanos[s] / 1e6 / stageCounts[s],
+                        100.0 * stageNanos[s] / Math.max(busy, 1)));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Base for writers that stream frames into a single container file. Render
+// workers deliver frames out of order, so frames that arrive early are
+// copied and parked until every frame before them has been written. A
+// worker delivering an early frame waits while MAX_PENDING frames are
+// already parked; the worker holding the next frame never waits, so
+// memory stays bounded however long the sequence is. A failed write or
+// abort() wakes every waiting worker and fails it, and every later frame.
+public abstract class SequenceWriter implements FrameSink {
+
+    public static final int MAX_PENDING = 8;
+
+    private final Map<Integer, BufferedImage> pending = new HashMap<>();
+    private int next = 0;           // index of the next frame to write
+    private Throwable error;        // first write failure or abort cause
+    private volatile RenderMetrics metrics;    // encode and write times, may be null
+    private volatile FrameSink listener;    // told about each frame once it is in the file, may be null;
+                                            // the image passed to it is only valid during the call
+
+    // Append one frame to the container; frames arrive here in order
+    protected abstract void writeFrame(BufferedImage frame) throws IOException;
+
+    // Finish the container after the last frame
+    protected abstract void finish() throws IOException;
+
+    // Record encode and write times and bytes written in m
+    public void setMetrics(RenderMetrics m) {
+        metrics = m;
+    }
+
+    // Tell l about each frame, in order, once writeFrame has put it in the
+    // container; a frame parked to wait for earlier ones is not written yet
+    public void setListener(FrameSink l) {
+        listener = l;
+    }
+
+    // For writeFrame: record the output of the frame being written
+    protected void recordOutput(String format, long encodeNanos, long writeNanos, long bytes) {
+        RenderMetrics m = metrics;
+        if (m != null)
+            m.addOutput(next, format, encodeNanos, writeNanos, bytes);
+    }
+
+    @Override
+    public synchronized void frameRendered(int index, BufferedImage frame) {
+        try {
+            while (index != next && pending.size() >= MAX_PENDING && error == null)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new IOException("Interrupted while queueing frame " + index));
+        }
+        if (error != null)
+            throw new UncheckedIOException(failure());
+
+        if (index != next) {
+            pending.put(index, copyOf(frame));
+            return;
+        }
+
+        // Write this frame and every parked frame that now follows it
+        try {
+            write(frame);
+            BufferedImage f;
+            while ((f = pending.remove(next)) != null)
+                write(f);
+        } catch (IOException e) {
+            error = e;
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            notifyAll();
+        }
+    }
+
+    // The render failed: release workers waiting on frames that will never
+    // come and refuse any further frames
+    @Override
+    public synchronized void abort(Throwable cause) {
+        if (error == null)
+            error = cause;
+        notifyAll();
+    }
+
+    private void write(BufferedImage frame) throws IOException {
+        writeFrame(frame);
+        FrameSink l = listener;
+        if (l != null)
+            l.frameRendered(next, frame);
+        next++;
+    }
+
+    public synchronized int getFramesWritten() {
+        return next;
+    }
+
+    // Finish the container with the frames written so far. Parked frames
+    // past a gap, left behind by a cancelled render, are dropped.
+    public synchronized void close() throws IOException {
+        pending.clear();
+        finish();
+        if (error != null)
+            throw failure();
+    }
+
+    private IOException failure() {
+        return error instanceof IOException ? (IOException) error : new IOException("Frame sequence failed", error);
+    }
+
+    private static BufferedImage copyOf(BufferedImage frame) {
+        BufferedImage copy = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(frame, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+}
@@ -0,0 +1,10 @@
+import java.awt.image.BufferedImage;
+
+// Receives a frame in rectangular tiles as TiledMorphRenderer produces
+// them: the pixels of frame index from (x, y) to (x + tile.getWidth() - 1,
+// y + tile.getHeight() - 1). Tiles of a frame cover it exactly once,
+// roughly top to bottom, and frames arrive in order; the image belongs
+// to the renderer and is reused once tileRendered returns.
+public interface TileSink {
+    void tileRendered(int index, int x, int y, BufferedImage tile);
+}
@@ -0,0 +1,350 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Renders a morph for sources too large to load: each frame is produced
+// in rectangular tiles, and for each tile only the regions of the two
+// source images it samples are read, through ImageRegionReader. The
+// frame never exists as a whole either; every tile goes to a TileSink,
+// normally a FrameStore, as soon as it is done.
+//
+// Memory stays under a byte budget. A tile's longer side is halved until
+// the tile itself and the two source regions it needs fit, each source
+// getting half of what the tile leaves, counted at the peak a region
+// takes while it is read (ImageRegionReader.getBytesPerPixel). Regions
+// are read larger than needed when the budget allows, to the right and
+// then further down, so the next tiles can usually reuse them without
+// going back to the file.
+//
+// Frames are the same as MorphRenderer's for the same images and meshes.
+// Its static layer is left out, since that holds whole frames of pixels.
+public class TiledMorphRenderer {
+
+    public static final long DEFAULT_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+    private static final long MAX_BAND_BYTES = 1L << 30;   // keeps tile arrays and file mappings in range
+    private static final int MIN_TILE = 16;     // tiles are not split below this, over budget or not
+    private static final int MARGIN = 3;    // source pixels around a region that samplers may touch
+
+    private final ImageRegionReader initSrc, finSrc;
+    private final Mesh initFrame, finalFrame;   // control points in frame coordinates
+    private final Mesh initMesh, finalMesh;     // initial points in the first image, final in the second
+    private final int width, height, frames;
+    private final boolean opaque;
+    private long budget = DEFAULT_BUDGET;
+    private int threads = MorphRenderer.DEFAULT_THREADS;
+    private Object interpolation;   // RenderingHints interpolation value, null for bilinear
+    private IntensityLut initLut, finLut;
+    private RenderMetrics metrics = new RenderMetrics();
+    private volatile boolean cancelled;
+
+    // Per-render state: the current frame's mesh and affines, the cached
+    // source regions and the tile image
+    private class Pass {
+        final Mesh tween = new Mesh(initFrame.getRows(), initFrame.getCols());
+        final double[] initAffines = new double[6 * tween.getTriangleCount()];
+        final double[] finAffines = new double[6 * tween.getTriangleCount()];
+        final boolean[] solved = new boolean[tween.getTriangleCount()];
+        final Region initRegion = new Region(initSrc, initLut);
+        final Region finRegion = new Region(finSrc, finLut);
+        final ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        BufferedImage tile;
+    }
+
+    // The part of one source currently held in memory
+    private class Region {
+        final ImageRegionReader source;
+        final IntensityLut lut;
+        Rectangle bounds;
+        PixelBuffer pixels;
+
+        Region(ImageRegionReader source, IntensityLut lut) {
+            this.source = source;
+            this.lut = lut;
+        }
+
+        // Pixels covering need, of at most maxBytes unless need alone is larger
+        PixelBuffer fetch(Rectangle need, long maxBytes) throws IOException {
+            long bpp = source.getBytesPerPixel();
+            if (bounds != null && bounds.contains(need) && bpp * bounds.width * bounds.height <= maxBytes)
+                return pixels;
+
+            // Drop the old region before reading the new one
+            bounds = null;
+            pixels = null;
+            long start = System.nanoTime();
+            Rectangle r = new Rectangle(need);
+            long columns = maxBytes / (bpp * r.height);
+            if (columns >= source.getWidth()) {
+                // Whole rows fit: take them, as far down as the budget goes
+                r.x = 0;
+                r.width = source.getWidth();
+                r.height = (int) Math.min(Math.max(r.height, maxBytes / (bpp * r.width)), source.getHeight() - r.y);
+            }
+            else {
+                // Run on to the right, where the next tiles are
+                r.width = (int) Math.min(Math.max(r.width, columns), source.getWidth() - r.x);
+            }
+            BufferedImage img = source.read(r);
+            metrics.addStage(RenderMetrics.READ, System.nanoTime() - start);
+            bounds = r;
+            pixels = new PixelBuffer(img, lut, r.x, r.y);
+            return pixels;
+        }
+    }
+
+    // initPoints and finalPoints are control point meshes in display
+    // coordinates (displayWidth x displayHeight). Frames are width x height
+    // and the points are scaled to it and to each source's own size.
+    public TiledMorphRenderer(ImageRegionReader I, ImageRegionReader F, Mesh initPoints, Mesh finalPoints,
+                              int frames, int displayWidth, int displayHeight, int width, int height) {
+        if (!initPoints.sameShape(finalPoints))
+            throw new IllegalArgumentException("control point meshes differ in size");
+        initSrc = I;
+        finSrc = F;
+        this.frames = frames;
+        this.width = width;
+        this.height = height;
+        opaque = I.isOpaque() && F.isOpaque();
+
+        double fx = (double) width / displayWidth, fy = (double) height / displayHeight;
+        initFrame = initPoints.scaled(fx, fy);
+        finalFrame = finalPoints.scaled(fx, fy);
+        initMesh = initPoints.scaled((double) I.getWidth() / displayWidth, (double) I.getHeight() / displayHeight);
+        finalMesh = finalPoints.scaled((double) F.getWidth() / displayWidth, (double) F.getHeight() / displayHeight);
+    }
+
+    // Most bytes of pixels held at once: the tile being rendered plus the
+    // source regions it reads. Decoders need some working memory on top.
+    public void setMemoryBudget(long bytes) {
+        budget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return budget;
+    }
+
+    // Threads warping the rows of each tile
+    public void setThreads(int t) {
+        threads = Math.max(1, t);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setInterpolation(Object hint) {
+        interpolation = hint;
+    }
+
+    public Object getInterpolation() {
+        return interpolation;
+    }
+
+    // Same as MorphRenderer.setIntensity
+    public void setIntensity(float initial, float fin) {
+        initLut = initial == 1 ? null : new IntensityLut(initial);
+        finLut = fin == 1 ? null : new IntensityLut(fin);
+    }
+
+    public void setMetrics(RenderMetrics m) {
+        metrics = m;
+    }
+
+    public RenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Ask render to stop; it returns after the tile it is on
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    // Whether both sources are opaque, so frames have no alpha to keep
+    public boolean isOpaque() {
+        return opaque;
+    }
+
+    // Render every frame, in order, handing each tile to sink as it is
+    // finished. Returns early, without error, once cancel() has been called.
+    public void render(TileSink sink) throws IOException {
+        long start = System.nanoTime();
+        Pass pass = new Pass();
+        try {
+            for (int i = 0; i < frames && !cancelled; i++)
+                renderFrame(i, pass, sink);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (pass.pool != null)
+                pass.pool.shutdown();
+            metrics.addWallTime(System.nanoTime() - start);
+        }
+    }
+
+    private void renderFrame(int i, Pass pass, TileSink sink) throws IOException {
+        long start = System.nanoTime();
+        double t = frames > 1 ? (double) i / (frames - 1) : 1;
+        Mesh.lerp(initFrame, finalFrame, t, pass.tween);
+        long t1 = System.nanoTime();
+        MorphTools.solveMesh(initMesh, pass.tween, pass.initAffines, pass.solved);
+        MorphTools.solveMesh(finalMesh, pass.tween, pass.finAffines, pass.solved);
+        metrics.addStage(RenderMetrics.MESH, t1 - start);
+        metrics.addStage(RenderMetrics.SOLVE, System.nanoTime() - t1);
+
+        // Start from bands small enough to allocate and map, then split further by budget
+        int rows = (int) Math.max(1, Math.min(height, MAX_BAND_BYTES / (4L * width)));
+        for (int y = 0; y < height && !cancelled; y += rows)
+            renderTile(i, t, pass, new Rectangle(0, y, width, Math.min(rows, height - y)), sink);
+        metrics.addFrame(System.nanoTime() - start);
+    }
+
+    // Render area of frame i, halving its longer side while it does not fit the budget
+    private void renderTile(int i, double t, Pass pass, Rectangle area, TileSink sink) throws IOException {
+        long share = (budget - 4L * area.width * area.height) / 2;
+        Rectangle initNeed = sourceRegion(pass.tween, pass.initAffines, pass.solved, initSrc, area);
+        Rectangle finNeed = sourceRegion(pass.tween, pass.finAffines, pass.solved, finSrc, area);
+        if (Math.max(area.width, area.height) > MIN_TILE
+                && ((long) initSrc.getBytesPerPixel() * initNeed.width * initNeed.height > share
+                    || (long) finSrc.getBytesPerPixel() * finNeed.width * finNeed.height > share)) {
+            Rectangle first = new Rectangle(area), second = new Rectangle(area);
+            if (area.width > area.height) {
+                first.width = area.width / 2;
+                second.x += first.width;
+                second.width -= first.width;
+            }
+            else {
+                first.height = area.height / 2;
+                second.y += first.height;
+                second.height -= first.height;
+            }
+            renderTile(i, t, pass, first, sink);
+            if (!cancelled)
+                renderTile(i, t, pass, second, sink);
+            return;
+        }
+
+        PixelBuffer init = pass.initRegion.fetch(initNeed, Math.max(share, 0));
+        PixelBuffer fin = pass.finRegion.fetch(finNeed, Math.max(share, 0));
+
+        if (pass.tile == null || pass.tile.getWidth() != area.width || pass.tile.getHeight() != area.height) {
+            pass.tile = null;   // let the old tile go before allocating
+            pass.tile = new BufferedImage(area.width, area.height,
+                    opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        }
+        else {
+            // Pixels no triangle covers stay clear, as in a new frame
+            Arrays.fill(((DataBufferInt) pass.tile.getRaster().getDataBuffer()).getData(), 0);
+        }
+        PixelBuffer dst = new PixelBuffer(pass.tile, null, area.x, area.y);
+
+        long start = System.nanoTime();
+        int rowStart = area.y, rowEnd = area.y + area.height - 1;
+        if (pass.pool != null)
+            pass.pool.invoke(new BandTask(init, fin, dst, pass, t, rowStart, rowEnd));
+        else
+            MorphTools.blendMesh(init, fin, dst, pass.tween, pass.initAffines, pass.finAffines, pass.solved,
+                    t, interpolation, rowStart, rowEnd);
+        metrics.addStage(RenderMetrics.WARP, System.nanoTime() - start);
+
+        sink.tileRendered(i, area.x, area.y, pass.tile);
+    }
+
+    // Bounds of the pixels of source that area of the frame samples
+    // through affines, clipped to the source and never empty
+    private Rectangle sourceRegion(Mesh m, double[] affines, boolean[] solved, ImageRegionReader source,
+                                   Rectangle area) {
+        double minX = Double.POSITIVE_INFINITY, minY = minX, maxX = Double.NEGATIVE_INFINITY, maxY = maxX;
+        int[] idx = m.indices;
+        double[] xs = m.xs, ys = m.ys;
+        for (int t = 0, n = 0; n < idx.length; t++, n += 3) {
+            if (!solved[t])
+                continue;
+            int a = idx[n], b = idx[n + 1], c = idx[n + 2];
+
+            // Part of the triangle's bounding box inside area, a pixel
+            // larger all round for vertex snapping
+            double y0 = Math.max(Math.min(ys[a], Math.min(ys[b], ys[c])) - 1, area.y);
+            double y1 = Math.min(Math.max(ys[a], Math.max(ys[b], ys[c])) + 1, area.y + area.height);
+            double x0 = Math.max(Math.min(xs[a], Math.min(xs[b], xs[c])) - 1, area.x);
+            double x1 = Math.min(Math.max(xs[a], Math.max(xs[b], xs[c])) + 1, area.x + area.width);
+            if (y0 > y1 || x0 > x1)
+                continue;
+
+            // Every pixel center sampled maps inside the image of that box
+            int o = 6 * t;
+            for (int k = 0; k < 4; k++) {
+                double x = (k & 1) == 0 ? x0 : x1, y = (k & 2) == 0 ? y0 : y1;
+                double sx = affines[o] * x + affines[o + 1] * y + affines[o + 2];
+                double sy = affines[o + 3] * x + affines[o + 4] * y + affines[o + 5];
+                minX = Math.min(minX, sx);
+                maxX = Math.max(maxX, sx);
+                minY = Math.min(minY, sy);
+                maxY = Math.max(maxY, sy);
+            }
+        }
+        if (minX > maxX)
+            return new Rectangle(0, 0, 1, 1);
+
+        int left = (int) Math.max(0, Math.floor(minX) - MARGIN);
+        int top = (int) Math.max(0, Math.floor(minY) - MARGIN);
+        int right = (int) Math.min(source.getWidth() - 1, Math.ceil(maxX) + MARGIN);
+        int bottom = (int) Math.min(source.getHeight() - 1, Math.ceil(maxY) + MARGIN);
+        if (left > right || top > bottom)
+            return new Rectangle(Math.min(left, source.getWidth() - 1), Math.min(top, source.getHeight() - 1), 1, 1);
+        return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    // Warps rows rowStart..rowEnd of a tile, halving them down to
+    // MorphRenderer.BAND_ROWS; rows are disjoint, so the tile is the same
+    // however the halves are scheduled
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final PixelBuffer init, fin, dst;
+        private final Pass pass;
+        private final double t;
+        private final int rowStart, rowEnd;
+
+        BandTask(PixelBuffer init, PixelBuffer fin, PixelBuffer dst, Pass pass, double t, int rowStart, int rowEnd) {
+            this.init = init;
+            this.fin = fin;
+            this.dst = dst;
+            this.pass = pass;
+            this.t = t;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowEnd - rowStart + 1 > MorphRenderer.BAND_ROWS) {
+                int mid = (rowStart + rowEnd) >>> 1;
+                invokeAll(new BandTask(init, fin, dst, pass, t, rowStart, mid),
+                        new BandTask(init, fin, dst, pass, t, mid + 1, rowEnd));
+                return;
+            }
+            MorphTools.blendMesh(init, fin, dst, pass.tween, pass.initAffines, pass.finAffines, pass.solved,
+                    t, interpolation, rowStart, rowEnd);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+// One full frame, with its row bands on threads threads, and a whole
+// render on threads workers. A render with more than one thread starts
+// and stops its workers within the operation, and -prof gc only counts
+// allocations of threads alive when an iteration ends; add churn=true
+// (-prof "gc:churn=true") to measure those at the garbage collector.
+public class FrameBenchmark extends StageBenchmark {
+
+    @Param({"600x600", "1920x1080", "3840x2160"})
+    public String size;
+
+    @Param({"5", "10", "20", "40"})
+    public int grid;
+
+    @Param({"nearest", "bilinear", "bicubic"})
+    public String interpolation;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Benchmark
+    public void frame(Blackhole bh) {
+        bh.consume(op.get());
+    }
+
+    @Benchmark
+    public void render(Blackhole bh) {
+        bh.consume(op.get());
+    }
+}
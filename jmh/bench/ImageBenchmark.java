@@ -0,0 +1,23 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Whole-image stages that do not depend on the mesh: the AlphaComposite
+// cross-dissolve and the JPEG encode
+public class ImageBenchmark extends StageBenchmark {
+
+    @Param({"600x600", "1920x1080", "3840x2160"})
+    public String size;
+
+    @Benchmark
+    public void composite(Blackhole bh) {
+        bh.consume(op.get());
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) {
+        bh.consume(op.get());
+    }
+}
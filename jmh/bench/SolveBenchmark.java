@@ -0,0 +1,20 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Tween mesh interpolation and affine solve
+public class SolveBenchmark extends StageBenchmark {
+
+    @Param({"600x600", "1920x1080", "3840x2160"})
+    public String size;
+
+    @Param({"5", "10", "20", "40"})
+    public int grid;
+
+    @Benchmark
+    public void solve(Blackhole bh) {
+        bh.consume(op.get());
+    }
+}
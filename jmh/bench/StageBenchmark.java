@@ -0,0 +1,59 @@
+package bench;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Base of the pipeline benchmarks. Each benchmark method times the
+// MorphBench case of the same name, built once per trial from the
+// parameters its class declares; size is WxH, and parameters a class does
+// not declare are left at their defaults. The application classes live in
+// the default package, which code in a package cannot name, so the cases
+// are built through reflection; only the setup goes through it.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public abstract class StageBenchmark {
+
+    protected Supplier<Object> op;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp(BenchmarkParams params) throws Exception {
+        String name = params.getBenchmark();
+        String stage = name.substring(name.lastIndexOf('.') + 1);
+        String[] size = param(params, "size", "600x600").split("x");
+        Method setUp = Class.forName("MorphBench").getMethod("setUp",
+                String.class, int.class, int.class, int.class, String.class, int.class);
+        try {
+            op = (Supplier<Object>) setUp.invoke(null, stage,
+                    Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+                    Integer.parseInt(param(params, "grid", "10")),
+                    param(params, "interpolation", "bilinear"),
+                    Integer.parseInt(param(params, "threads", "1")));
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static String param(BenchmarkParams params, String key, String otherwise) {
+        String value = params.getParam(key);
+        return value != null ? value : otherwise;
+    }
+}
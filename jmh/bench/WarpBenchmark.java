@@ -0,0 +1,28 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Warping one image, and warping and blending two in one pass
+public class WarpBenchmark extends StageBenchmark {
+
+    @Param({"600x600", "1920x1080", "3840x2160"})
+    public String size;
+
+    @Param({"5", "10", "20", "40"})
+    public int grid;
+
+    @Param({"nearest", "bilinear", "bicubic"})
+    public String interpolation;
+
+    @Benchmark
+    public void warp(Blackhole bh) {
+        bh.consume(op.get());
+    }
+
+    @Benchmark
+    public void blend(Blackhole bh) {
+        bh.consume(op.get());
+    }
+}
@@ -0,0 +1,104 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// PixelKernels on jdk.incubator.vector: each pass handles as many pixels as
+// fit in the widest int vector the CPU has (8 with AVX2, 16 with AVX-512),
+// with the two-channels-per-lane packing of the scalar code kept as is.
+// Tails shorter than a vector fall through to the scalar loops.
+//
+// Kept out of the main source directory because it only compiles with the
+// incubator module added; PixelKernels.get() picks it up when it is built.
+public class VectorPixelKernels extends PixelKernels {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    // Per-thread runs of the four bilinear neighbours and the two weights
+    private final ThreadLocal<int[][]> taps = ThreadLocal.withInitial(() -> new int[6][0]);
+
+    public VectorPixelKernels() {
+        // A JVM without vector intrinsics reports a one-lane species; the
+        // scalar loops are faster than emulated vectors there
+        if (LANES < 4)
+            throw new UnsupportedOperationException("no usable int vectors");
+    }
+
+    @Override
+    public String getName() {
+        return "vector" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public void blend(int[] a, int ao, int[] b, int bo, int[] dst, int d, int len, int weight) {
+        IntVector w = IntVector.broadcast(SPECIES, weight), inv = IntVector.broadcast(SPECIES, 256 - weight);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(len); i < bound; i += LANES) {
+            IntVector p = IntVector.fromArray(SPECIES, a, ao + i);
+            IntVector q = IntVector.fromArray(SPECIES, b, bo + i);
+            lerp(p, q, w, inv).intoArray(dst, d + i);
+        }
+        super.blend(a, ao + i, b, bo + i, dst, d + i, len - i, weight);
+    }
+
+    @Override
+    public void bilinear(int[] src, int stride, int width, int height, boolean opaque, int[] lut,
+                         int[] fx, int[] fy, int f, int[] dst, int d, int len) {
+        int[][] tap = taps.get();
+        if (tap[0].length < len) {
+            for (int k = 0; k < tap.length; k++)
+                tap[k] = new int[len];
+        }
+        int[] c00 = tap[0], c10 = tap[1], c01 = tap[2], c11 = tap[3], wx = tap[4], wy = tap[5];
+
+        // Neighbours are fetched with scalar loads, which beat vector gathers
+        // on current JITs; the interpolation runs on whole vectors, one pass
+        // per lerp so each loop stays small enough to compile without boxing
+        int alpha = opaque ? 0xff000000 : 0;
+        for (int i = 0; i < len; i++) {
+            int x = fx[f + i], y = fy[f + i];
+            int x0 = x >> 8, y0 = y >> 8;
+            int x1 = clamp(x0 + 1, width), y1 = clamp(y0 + 1, height);
+            int r0 = clamp(y0, height) * stride, r1 = y1 * stride;
+            x0 = clamp(x0, width);
+            c00[i] = alpha | src[r0 + x0];
+            c10[i] = alpha | src[r0 + x1];
+            c01[i] = alpha | src[r1 + x0];
+            c11[i] = alpha | src[r1 + x1];
+            wx[i] = x & 0xff;
+            wy[i] = y & 0xff;
+        }
+        if (lut != null) {
+            for (int i = 0; i < len; i++) {
+                c00[i] = PixelBuffer.applyLut(lut, c00[i]);
+                c10[i] = PixelBuffer.applyLut(lut, c10[i]);
+                c01[i] = PixelBuffer.applyLut(lut, c01[i]);
+                c11[i] = PixelBuffer.applyLut(lut, c11[i]);
+            }
+        }
+        lerpRun(c00, c10, wx, c00, 0, len);
+        lerpRun(c01, c11, wx, c01, 0, len);
+        lerpRun(c00, c01, wy, dst, d, len);
+    }
+
+    // dst[d + i] = a[i] + (b[i] - a[i]) * w[i]/256 per channel, i < len
+    private static void lerpRun(int[] a, int[] b, int[] w, int[] dst, int d, int len) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(len); i < bound; i += LANES) {
+            IntVector wv = IntVector.fromArray(SPECIES, w, i);
+            lerp(IntVector.fromArray(SPECIES, a, i), IntVector.fromArray(SPECIES, b, i), wv, wv.neg().add(256))
+                    .intoArray(dst, d + i);
+        }
+        for (; i < len; i++)
+            dst[d + i] = lerp(a[i], b[i], w[i]);
+    }
+
+    // a + (b - a) * w/256 per channel, two channels per 32-bit lane
+    private static IntVector lerp(IntVector a, IntVector b, IntVector w, IntVector inv) {
+        IntVector rb = a.and(0xff00ff).mul(inv).add(b.and(0xff00ff).mul(w)).add(0x800080)
+                .lanewise(VectorOperators.LSHR, 8).and(0xff00ff);
+        IntVector ag = a.lanewise(VectorOperators.LSHR, 8).and(0xff00ff).mul(inv)
+                .add(b.lanewise(VectorOperators.LSHR, 8).and(0xff00ff).mul(w)).add(0x800080).and(0xff00ff00);
+        return ag.or(rb);
+    }
+}